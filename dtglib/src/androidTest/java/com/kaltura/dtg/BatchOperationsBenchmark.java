@@ -0,0 +1,183 @@
+package com.kaltura.dtg;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Cost of createItems/startDownloads/removeItems for a batch of items, compared with the same
+ * number of createItem/startDownload/removeItem calls. Items are simple downloads served by a
+ * {@link LoopbackHttpTransport}, with a long latency while downloading so that the measured calls
+ * don't race with completing downloads.
+ * Results are logged with the tag "BatchOperationsBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class BatchOperationsBenchmark {
+
+    private static final String TAG = "BatchOperationsBenchmark";
+    private static final int ITEMS = 50;
+    private static final int RUNS = 5;
+    private static final long DOWNLOAD_LATENCY_MILLIS = 10000;
+
+    private final LoopbackHttpTransport transport = new LoopbackHttpTransport();
+    private ContentManager contentManager;
+    private volatile CountDownLatch metadataLatch;
+    private int round;
+
+    private final DownloadStateListener listener = new DownloadStateListener() {
+        @Override
+        public void onDownloadComplete(DownloadItem item) {}
+
+        @Override
+        public void onProgressChange(DownloadItem item, long downloadedBytes) {}
+
+        @Override
+        public void onDownloadStart(DownloadItem item) {}
+
+        @Override
+        public void onDownloadPause(DownloadItem item) {}
+
+        @Override
+        public void onDownloadFailure(DownloadItem item, Exception error) {}
+
+        @Override
+        public void onDownloadMetadata(DownloadItem item, Exception error) {
+            if (error == null) {
+                metadataLatch.countDown();
+            }
+        }
+
+        @Override
+        public void onTracksAvailable(DownloadItem item, DownloadItem.TrackSelector trackSelector) {}
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        contentManager = ContentManager.getInstance(context);
+        if (!contentManager.isStarted()) {
+            final ContentManager.Settings settings = contentManager.getSettings();
+            settings.httpTransport = transport;
+            settings.downloadRequestAdapter = requestParams -> requestParams;
+        }
+        contentManager.addDownloadStateListener(listener);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        contentManager.start(started::countDown);
+        assertTrue(started.await(30, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        contentManager.removeDownloadStateListener(listener);
+        contentManager.stop();
+    }
+
+    @Test
+    public void batchVsSingleCalls() throws Exception {
+        final long[][] batch = new long[3][RUNS];
+        final long[][] single = new long[3][RUNS];
+
+        for (int run = 0; run < RUNS; run++) {
+            runBatch(batch, run);
+            runSingle(single, run);
+        }
+
+        final String[] names = {"create", "start", "remove"};
+        for (int op = 0; op < names.length; op++) {
+            Arrays.sort(batch[op]);
+            Arrays.sort(single[op]);
+            Log.i(TAG, names[op] + " " + ITEMS + " items: batch " + batch[op][RUNS / 2] / 1000 + "us, single calls " +
+                    single[op][RUNS / 2] / 1000 + "us (medians of " + RUNS + ")");
+        }
+    }
+
+    private void runBatch(long[][] nanos, int run) throws Exception {
+        final Map<String, String> urls = newItemUrls();
+
+        long start = System.nanoTime();
+        final List<DownloadItem> items = contentManager.createItems(urls);
+        nanos[0][run] = System.nanoTime() - start;
+        assertEquals(ITEMS, items.size());
+
+        loadMetadata(items);
+
+        start = System.nanoTime();
+        contentManager.startDownloads(items);
+        nanos[1][run] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        contentManager.removeItems(new ArrayList<>(urls.keySet()));
+        nanos[2][run] = System.nanoTime() - start;
+
+        transport.setLatencyMillis(0);
+    }
+
+    private void runSingle(long[][] nanos, int run) throws Exception {
+        final Map<String, String> urls = newItemUrls();
+
+        long start = System.nanoTime();
+        final List<DownloadItem> items = new ArrayList<>(ITEMS);
+        for (Map.Entry<String, String> entry : urls.entrySet()) {
+            items.add(contentManager.createItem(entry.getKey(), entry.getValue()));
+        }
+        nanos[0][run] = System.nanoTime() - start;
+
+        loadMetadata(items);
+
+        start = System.nanoTime();
+        for (DownloadItem item : items) {
+            item.startDownload();
+        }
+        nanos[1][run] = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (String itemId : urls.keySet()) {
+            contentManager.removeItem(itemId);
+        }
+        nanos[2][run] = System.nanoTime() - start;
+
+        transport.setLatencyMillis(0);
+    }
+
+    // Ids and URLs for a new round of items; each URL is served with a small body.
+    private Map<String, String> newItemUrls() {
+        final Map<String, String> urls = new LinkedHashMap<>();
+        for (int i = 0; i < ITEMS; i++) {
+            final String itemId = "batch-" + round + "-" + i;
+            final String url = "http://loopback.test/" + itemId + "/video.mp4";
+            transport.put(url, new byte[1024]);
+            urls.put(itemId, url);
+        }
+        round++;
+        return urls;
+    }
+
+    // Load the metadata of all items, then slow down the transport so the downloads stay in flight.
+    private void loadMetadata(List<DownloadItem> items) throws InterruptedException {
+        metadataLatch = new CountDownLatch(items.size());
+        for (DownloadItem item : items) {
+            item.loadMetadata();
+        }
+        assertTrue(metadataLatch.await(60, TimeUnit.SECONDS));
+        transport.setLatencyMillis(DOWNLOAD_LATENCY_MILLIS);
+    }
+}
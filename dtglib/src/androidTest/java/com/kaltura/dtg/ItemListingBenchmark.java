@@ -0,0 +1,88 @@
+package com.kaltura.dtg;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Latency of listing the library: readItemsFromDB() over 500 items, each with its file counts.
+ * Results are logged with the tag "ItemListingBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class ItemListingBenchmark {
+
+    private static final String TAG = "ItemListingBenchmark";
+    private static final int ITEMS = 500;
+    private static final int FILES_PER_ITEM = 20;
+    private static final int RUNS = 20;
+
+    private File dbFile;
+    private Database database;
+
+    @Before
+    public void setUp() throws Exception {
+        final Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Storage.setup(context, new ContentManager.Settings());
+        dbFile = new File(context.getCacheDir(), "listing-benchmark.db");
+        context.deleteDatabase(dbFile.getAbsolutePath());
+        database = new Database(dbFile, context, false, null);
+
+        for (int i = 0; i < ITEMS; i++) {
+            final String itemId = "item" + i;
+            final File dataDir = new File(Storage.getDownloadsDir(), "items/" + itemId + "/data");
+            final DownloadItemImp item = new DownloadItemImp(itemId, "http://example.com/" + itemId + "/master.m3u8");
+            item.setAddedTime(System.currentTimeMillis());
+            item.setDataDir(dataDir.getAbsolutePath());
+            database.addItemsToDB(Arrays.asList(item));
+
+            final List<DownloadTask> tasks = new ArrayList<>(FILES_PER_ITEM);
+            for (int j = 0; j < FILES_PER_ITEM; j++) {
+                tasks.add(new DownloadTask(Uri.parse("http://example.com/" + itemId + "/seg" + j + ".ts"), new File(dataDir, "seg" + j + ".ts"), j));
+            }
+            database.addDownloadTasksToDB(item, tasks);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        InstrumentationRegistry.getInstrumentation().getTargetContext().deleteDatabase(dbFile.getAbsolutePath());
+    }
+
+    @Test
+    public void listAllItems() {
+        final DownloadState[] states = DownloadState.values();
+        database.readItemsFromDB(states);   // warm-up
+
+        final long[] nanos = new long[RUNS];
+        for (int run = 0; run < RUNS; run++) {
+            final long start = System.nanoTime();
+            final List<DownloadItemImp> items = database.readItemsFromDB(states);
+            nanos[run] = System.nanoTime() - start;
+
+            assertEquals(ITEMS, items.size());
+            for (DownloadItemImp item : items) {
+                assertEquals(FILES_PER_ITEM, item.totalFileCount);
+            }
+        }
+
+        Arrays.sort(nanos);
+        Log.i(TAG, "readItemsFromDB, " + ITEMS + " items x " + FILES_PER_ITEM + " files: median " +
+                nanos[RUNS / 2] / 1000 + "us, max " + nanos[RUNS - 1] / 1000 + "us");
+    }
+}
@@ -0,0 +1,181 @@
+package com.kaltura.dtg;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A download is interrupted by process death, then resumed by a new process from the db. The
+ * process dies without a graceful stop: the Database instance is abandoned with its queued writes,
+ * and only what a group commit already wrote survives.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ResumeAfterProcessDeathTest {
+
+    private static final String ITEM_ID = "resume-item";
+    private static final String URL = "http://loopback.test/resume/video.mp4";
+    private static final int LENGTH = 512 * 1024;
+
+    private final LoopbackHttpTransport transport = new LoopbackHttpTransport();
+    private final ContentManager.Settings settings = new ContentManager.Settings();
+    private final List<Database> databases = new ArrayList<>();
+    private Context context;
+    private File dbFile;
+    private File targetFile;
+    private byte[] body;
+
+    @Before
+    public void setUp() throws IOException {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Storage.setup(context, settings);
+        Utils.setHttpTransport(transport);
+        dbFile = new File(context.getCacheDir(), "resume-test.db");
+        context.deleteDatabase(dbFile.getAbsolutePath());
+
+        body = newBody(1);
+        transport.put(URL, body);
+
+        final File dataDir = new File(Storage.getDownloadsDir(), "items/" + ITEM_ID + "/data");
+        Utils.deleteRecursive(dataDir);
+        targetFile = new File(dataDir, "video.mp4");
+
+        final Database database = startProcess();
+        final DownloadItemImp item = new DownloadItemImp(ITEM_ID, URL);
+        item.setAddedTime(System.currentTimeMillis());
+        item.setDataDir(dataDir.getAbsolutePath());
+        database.addItemsToDB(Arrays.asList(item));
+        database.addDownloadTasksToDB(item, Arrays.asList(new DownloadTask(Uri.parse(URL), targetFile, 1)));
+    }
+
+    @After
+    public void tearDown() {
+        for (Database database : databases) {
+            database.close();
+        }
+        context.deleteDatabase(dbFile.getAbsolutePath());
+        Utils.setHttpTransport(null);
+    }
+
+    // Open the db as a new process would. Earlier instances are abandoned, not closed.
+    private Database startProcess() {
+        final Database database = new Database(dbFile, context, false, null);
+        databases.add(database);
+        return database;
+    }
+
+    private static byte[] newBody(int seed) {
+        final byte[] bytes = new byte[LENGTH];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private DownloadTask readPendingTask(Database database) {
+        final List<DownloadTask> tasks = database.readPendingDownloadTasksFromDB(ITEM_ID, Integer.MIN_VALUE, -1, 10);
+        assertEquals(1, tasks.size());
+        return tasks.get(0);
+    }
+
+    // Download like the service does, with a group commit while the download is running.
+    private DownloadTask.State download(final Database database, DownloadTask task, final AtomicLong transferred) throws Exception {
+        final AtomicReference<DownloadTask.State> result = new AtomicReference<>();
+        task.setDownloadSettings(settings);
+        task.setResumeInfoListener(t -> {
+            database.saveResumeInfo(t);
+            database.flushPendingWrites();
+        });
+        task.setListener((t, state, newBytes, stopError) -> {
+            transferred.addAndGet(newBytes);
+            if (state == DownloadTask.State.COMPLETED || state == DownloadTask.State.STOPPED || state == DownloadTask.State.ERROR) {
+                result.set(state);
+            }
+        });
+        task.download(null);
+        return result.get();
+    }
+
+    private byte[] readTarget() throws IOException {
+        final byte[] bytes = new byte[(int) targetFile.length()];
+        try (FileInputStream in = new FileInputStream(targetFile)) {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        }
+        return bytes;
+    }
+
+    private void truncateTarget(long length) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            file.setLength(length);
+        }
+    }
+
+    @Test
+    public void completeFileIsFoundWithoutRequest() throws Exception {
+        final Database first = startProcess();
+        final DownloadTask task = readPendingTask(first);
+        assertEquals(DownloadTask.State.COMPLETED, download(first, task, new AtomicLong()));
+        first.markTaskAsComplete(task);     // queued, but the process dies before the group commit
+
+        final Database second = startProcess();
+        final DownloadTask resumed = readPendingTask(second);
+        assertEquals(LENGTH, resumed.expectedLength);
+
+        final long requests = transport.getRequestCount();
+        assertEquals(DownloadTask.State.COMPLETED, download(second, resumed, new AtomicLong()));
+        assertEquals(requests, transport.getRequestCount());
+    }
+
+    @Test
+    public void partialFileIsResumedFromWhereItStopped() throws Exception {
+        final Database first = startProcess();
+        assertEquals(DownloadTask.State.COMPLETED, download(first, readPendingTask(first), new AtomicLong()));
+        truncateTarget(LENGTH / 3);     // the process died while writing
+
+        final Database second = startProcess();
+        final AtomicLong transferred = new AtomicLong();
+        assertEquals(DownloadTask.State.COMPLETED, download(second, readPendingTask(second), transferred));
+
+        assertEquals(LENGTH - LENGTH / 3, transferred.get());
+        assertArrayEquals(body, readTarget());
+    }
+
+    @Test
+    public void changedRemoteFileIsDownloadedAgain() throws Exception {
+        final Database first = startProcess();
+        assertEquals(DownloadTask.State.COMPLETED, download(first, readPendingTask(first), new AtomicLong()));
+        truncateTarget(LENGTH / 3);
+
+        final byte[] changed = newBody(2);
+        transport.put(URL, changed);    // new ETag: If-Range doesn't match
+
+        final Database second = startProcess();
+        final AtomicLong transferred = new AtomicLong();
+        assertEquals(DownloadTask.State.COMPLETED, download(second, readPendingTask(second), transferred));
+
+        assertEquals(LENGTH, transferred.get());
+        assertArrayEquals(changed, readTarget());
+    }
+}
@@ -0,0 +1,106 @@
+package com.kaltura.dtg;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Cost of marking segments complete as the library grows: the same number of completions is
+ * timed in libraries of 1,000 to 100,000 segment rows, both by FileID and by TargetFile (tasks
+ * created without a FileID). With the Files indexes the cost per completion should stay flat.
+ * Results are logged with the tag "TaskCompletionBenchmark".
+ */
+@RunWith(AndroidJUnit4.class)
+public class TaskCompletionBenchmark {
+
+    private static final String TAG = "TaskCompletionBenchmark";
+    private static final int FILES_PER_ITEM = 1000;
+    private static final int[] LIBRARY_SIZES = {1000, 10000, 100000};
+    private static final int COMPLETIONS = 500;
+
+    private Context context;
+    private File dbFile;
+    private Database database;
+    private int itemCount;
+
+    @Before
+    public void setUp() throws Exception {
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        Storage.setup(context, new ContentManager.Settings());
+        dbFile = new File(context.getCacheDir(), "completion-benchmark.db");
+        context.deleteDatabase(dbFile.getAbsolutePath());
+        database = new Database(dbFile, context, false, null);
+        database.setGroupCommitMaxRows(COMPLETIONS);
+    }
+
+    @After
+    public void tearDown() {
+        database.close();
+        context.deleteDatabase(dbFile.getAbsolutePath());
+    }
+
+    @Test
+    public void completionCostByLibrarySize() {
+        for (int size : LIBRARY_SIZES) {
+            while (itemCount * FILES_PER_ITEM < size) {
+                addItem();
+            }
+            final long byIdNanos = completeTasks(true);
+            final long byTargetFileNanos = completeTasks(false);
+            Log.i(TAG, size + " rows: " + byIdNanos / COMPLETIONS / 1000 + "us per completion by FileID, " +
+                    byTargetFileNanos / COMPLETIONS / 1000 + "us by TargetFile");
+        }
+    }
+
+    private void addItem() {
+        final String itemId = "item" + itemCount++;
+        final File dataDir = new File(Storage.getDownloadsDir(), "items/" + itemId + "/data");
+        final DownloadItemImp item = new DownloadItemImp(itemId, "http://example.com/" + itemId + "/master.m3u8");
+        item.setAddedTime(System.currentTimeMillis());
+        item.setDataDir(dataDir.getAbsolutePath());
+        database.addItemsToDB(Arrays.asList(item));
+
+        final List<DownloadTask> tasks = new ArrayList<>(FILES_PER_ITEM);
+        for (int j = 0; j < FILES_PER_ITEM; j++) {
+            tasks.add(new DownloadTask(Uri.parse("http://example.com/" + itemId + "/seg" + j + ".ts"), new File(dataDir, "seg" + j + ".ts"), j));
+        }
+        database.addDownloadTasksToDB(item, tasks);
+    }
+
+    // Complete pending tasks of the newest item and flush them. Returns the time taken.
+    private long completeTasks(boolean byFileId) {
+        final String itemId = "item" + (itemCount - 1);
+        final int pendingBefore = database.countPendingFiles(itemId, null);
+        final List<DownloadTask> tasks = database.readPendingDownloadTasksFromDB(itemId, Integer.MIN_VALUE, -1, COMPLETIONS);
+        if (!byFileId) {
+            for (DownloadTask task : tasks) {
+                task.fileId = -1;
+            }
+        }
+
+        final long start = System.nanoTime();
+        for (DownloadTask task : tasks) {
+            database.markTaskAsComplete(task);
+        }
+        database.flushPendingWrites();
+        final long nanos = System.nanoTime() - start;
+
+        assertEquals(pendingBefore - tasks.size(), database.countPendingFiles(itemId, null));
+        return nanos;
+    }
+}
@@ -0,0 +1,141 @@
+package com.kaltura.dtg;
+
+import android.os.SystemClock;
+
+import androidx.annotation.NonNull;
+
+import com.kaltura.dtg.exoparser.util.SlidingPercentile;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the aggregate download bandwidth of all workers.
+ * <p>
+ * Workers report every read with {@link #onBytesTransferred(AtomicLong, int)}, which only touches
+ * atomic counters. Once per {@link #SAMPLE_WINDOW_MS} the bytes of the closing window are turned
+ * into a throughput sample: the latest one is the current throughput, and a {@link SlidingPercentile}
+ * over past samples (weighted by sqrt(bytes), as in ExoPlayer's DefaultBandwidthMeter) gives the median.
+ */
+class BandwidthMeter {
+    private static final long SAMPLE_WINDOW_MS = 1000;
+    private static final int MAX_WEIGHT = 2000;
+
+    private final SlidingPercentile slidingPercentile = new SlidingPercentile(MAX_WEIGHT);
+    private final ConcurrentHashMap<String, ItemCounter> itemCounters = new ConcurrentHashMap<>();
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong windowBytes = new AtomicLong();
+
+    private volatile long windowStart = SystemClock.elapsedRealtime();
+    private volatile long currentBytesPerSecond;
+
+    /**
+     * @return the counter a worker should pass to {@link #onBytesTransferred(AtomicLong, int)}
+     * while downloading for itemId.
+     */
+    @NonNull
+    AtomicLong itemCounter(@NonNull String itemId) {
+        ItemCounter counter = itemCounters.get(itemId);
+        if (counter == null) {
+            final ItemCounter newCounter = new ItemCounter();
+            counter = itemCounters.putIfAbsent(itemId, newCounter);
+            if (counter == null) {
+                counter = newCounter;
+            }
+        }
+        return counter.windowBytes;
+    }
+
+    void onBytesTransferred(@NonNull AtomicLong itemCounter, int bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        totalBytes.addAndGet(bytes);
+        windowBytes.addAndGet(bytes);
+        itemCounter.addAndGet(bytes);
+        maybeCloseWindow(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * @return bytes transferred since the meter was created. Other components can sample this to
+     * measure throughput over their own periods.
+     */
+    long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * @return throughput in bytes/sec over the last closed window.
+     */
+    long getCurrentThroughput() {
+        maybeCloseWindow(SystemClock.elapsedRealtime());
+        return currentBytesPerSecond;
+    }
+
+    /**
+     * @return the median throughput in bytes/sec over the recent busy windows, or 0 if unknown.
+     */
+    long getMedianThroughput() {
+        final float median;
+        synchronized (slidingPercentile) {
+            median = slidingPercentile.getPercentile(0.5f);
+        }
+        return Float.isNaN(median) ? 0 : (long) median;
+    }
+
+    /**
+     * @return throughput in bytes/sec of itemId over the last closed window.
+     */
+    long getItemThroughput(@NonNull String itemId) {
+        maybeCloseWindow(SystemClock.elapsedRealtime());
+        final ItemCounter counter = itemCounters.get(itemId);
+        return counter != null ? counter.bytesPerSecond : 0;
+    }
+
+    /**
+     * @return estimated time to download remainingBytes of itemId, in ms, or -1 if unknown.
+     */
+    long estimateTimeRemainingMs(@NonNull String itemId, long remainingBytes) {
+        if (remainingBytes <= 0) {
+            return 0;
+        }
+        long rate = getItemThroughput(itemId);
+        if (rate <= 0) {
+            // Not measured in the last window; assume the item gets the typical bandwidth.
+            rate = getMedianThroughput();
+        }
+        return rate > 0 ? remainingBytes * 1000 / rate : -1;
+    }
+
+    void removeItem(@NonNull String itemId) {
+        itemCounters.remove(itemId);
+    }
+
+    private void maybeCloseWindow(long now) {
+        if (now - windowStart < SAMPLE_WINDOW_MS) {
+            return;
+        }
+        synchronized (slidingPercentile) {
+            final long elapsed = now - windowStart;
+            if (elapsed < SAMPLE_WINDOW_MS) {
+                return;     // Closed by another thread.
+            }
+            windowStart = now;
+
+            final long bytes = windowBytes.getAndSet(0);
+            currentBytesPerSecond = bytes * 1000 / elapsed;
+            if (bytes > 0) {
+                slidingPercentile.addSample((int) Math.sqrt(bytes), currentBytesPerSecond);
+            }
+
+            for (ItemCounter counter : itemCounters.values()) {
+                counter.bytesPerSecond = counter.windowBytes.getAndSet(0) * 1000 / elapsed;
+            }
+        }
+    }
+
+    private static class ItemCounter {
+        final AtomicLong windowBytes = new AtomicLong();
+        volatile long bytesPerSecond;
+    }
+}
@@ -0,0 +1,91 @@
+package com.kaltura.dtg;
+
+import androidx.annotation.NonNull;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global and per-item download rate limits.
+ * <p>
+ * Each limit is a token bucket implemented as GCRA ("virtual scheduling"): a single atomic
+ * timestamp per bucket, advanced with compare-and-set. Workers charge the bytes they just read
+ * and sleep for the returned time, so the read loop takes no locks and allocates nothing.
+ */
+class BandwidthThrottle {
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final Bucket global = new Bucket();
+    private final ConcurrentHashMap<String, Bucket> items = new ConcurrentHashMap<>();
+
+    BandwidthThrottle(long globalBytesPerSecond) {
+        global.setRate(globalBytesPerSecond);
+    }
+
+    void setGlobalLimit(long bytesPerSecond) {
+        global.setRate(bytesPerSecond);
+    }
+
+    void setItemLimit(@NonNull String itemId, long bytesPerSecond) {
+        itemBucket(itemId).setRate(bytesPerSecond);
+    }
+
+    void removeItem(@NonNull String itemId) {
+        items.remove(itemId);
+    }
+
+    @NonNull
+    Bucket globalBucket() {
+        return global;
+    }
+
+    /**
+     * @return the bucket of itemId. Workers should look it up once per task, not per read.
+     */
+    @NonNull
+    Bucket itemBucket(@NonNull String itemId) {
+        Bucket bucket = items.get(itemId);
+        if (bucket == null) {
+            final Bucket newBucket = new Bucket();
+            bucket = items.putIfAbsent(itemId, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    static class Bucket {
+        private final AtomicLong theoreticalArrivalTime = new AtomicLong();
+        private volatile long bytesPerSecond;    // 0: unlimited
+
+        void setRate(long bytesPerSecond) {
+            this.bytesPerSecond = Math.max(0, bytesPerSecond);
+            // Forget the debt accumulated under the old rate.
+            theoreticalArrivalTime.set(0);
+        }
+
+        /**
+         * Charge bytes that were just transferred.
+         *
+         * @return nanoseconds the caller should wait before transferring more, 0 if none.
+         */
+        long charge(int bytes) {
+            final long rate = bytesPerSecond;
+            if (rate <= 0 || bytes <= 0) {
+                return 0;
+            }
+            final long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+            final long now = System.nanoTime();
+            long tat;
+            long newTat;
+            do {
+                tat = theoreticalArrivalTime.get();
+                newTat = Math.max(tat, now) + cost;
+            } while (!theoreticalArrivalTime.compareAndSet(tat, newTat));
+
+            return Math.max(0, newTat - now - BURST_NANOS);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.kaltura.dtg;
+
+import com.kaltura.dtg.exoparser.upstream.Allocation;
+import com.kaltura.dtg.exoparser.upstream.Allocator;
+
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of fixed-size byte buffers, shared by the download workers and manifest fetches.
+ * Released buffers are kept for reuse up to {@link ContentManager.Settings#maxPooledBuffers};
+ * anything beyond that is left to the GC.
+ */
+class BufferPool implements Allocator {
+    static final int BUFFER_SIZE = 16 * 1024;
+
+    private static BufferPool shared = new BufferPool(BUFFER_SIZE, 8);
+
+    private final int bufferSize;
+    private final ArrayDeque<Allocation> available = new ArrayDeque<>();
+    private int maxAvailable;
+    private int allocatedCount;
+    private long hits;
+    private long misses;
+
+    BufferPool(int bufferSize, int maxAvailable) {
+        this.bufferSize = bufferSize;
+        this.maxAvailable = maxAvailable;
+    }
+
+    static BufferPool shared() {
+        return shared;
+    }
+
+    static void setup(ContentManager.Settings settings) {
+        shared.setMaxAvailable(settings.maxPooledBuffers);
+    }
+
+    synchronized void setMaxAvailable(int maxAvailable) {
+        this.maxAvailable = maxAvailable;
+        trim();
+    }
+
+    @Override
+    public synchronized Allocation allocate() {
+        allocatedCount++;
+        final Allocation allocation = available.pollFirst();
+        if (allocation != null) {
+            hits++;
+            return allocation;
+        }
+        misses++;
+        return new Allocation(new byte[bufferSize], 0);
+    }
+
+    @Override
+    public synchronized void release(Allocation allocation) {
+        if (allocation == null) {
+            return;
+        }
+        allocatedCount--;
+        if (available.size() < maxAvailable) {
+            available.addFirst(allocation);
+        }
+    }
+
+    @Override
+    public synchronized void release(Allocation[] allocations) {
+        for (Allocation allocation : allocations) {
+            release(allocation);
+        }
+    }
+
+    @Override
+    public synchronized void trim() {
+        while (available.size() > maxAvailable) {
+            available.pollLast();
+        }
+    }
+
+    @Override
+    public synchronized int getTotalBytesAllocated() {
+        return allocatedCount * bufferSize;
+    }
+
+    @Override
+    public int getIndividualAllocationLength() {
+        return bufferSize;
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,125 @@
+package com.kaltura.dtg;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adjusts the number of download workers at runtime, AIMD-style:
+ * <ul>
+ * <li>When the error/timeout rate of the last window is above the threshold, halve the workers.</li>
+ * <li>When a previous increase did not improve the aggregate throughput, undo it and hold.</li>
+ * <li>Otherwise, add one worker.</li>
+ * </ul>
+ * Throughput is taken from the engine's {@link BandwidthMeter}.
+ * {@link #evaluate()} is expected to be called periodically from a single thread.
+ */
+class ConcurrencyController {
+    private static final String TAG = "ConcurrencyController";
+
+    static final long EVALUATION_INTERVAL_MS = 2000;
+    private static final float ERROR_RATE_THRESHOLD = 0.1f;
+    private static final float MIN_THROUGHPUT_GAIN = 0.05f;
+    private static final int HOLD_WINDOWS = 5;
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final Listener listener;
+    private final BandwidthMeter bandwidthMeter;
+
+    private final AtomicInteger windowSuccesses = new AtomicInteger();
+    private final AtomicInteger windowErrors = new AtomicInteger();
+
+    private volatile int workers;
+    private long windowStart = SystemClock.elapsedRealtime();
+    private long windowStartBytes;
+    private float lastThroughput;
+    private boolean lastStepWasIncrease;
+    private int holdWindows;
+
+    ConcurrencyController(int initialWorkers, int minWorkers, int maxWorkers, BandwidthMeter bandwidthMeter, Listener listener) {
+        this.minWorkers = Math.max(1, minWorkers);
+        this.maxWorkers = Math.max(this.minWorkers, maxWorkers);
+        this.workers = Math.min(this.maxWorkers, Math.max(this.minWorkers, initialWorkers));
+        this.bandwidthMeter = bandwidthMeter;
+        this.listener = listener;
+        this.windowStartBytes = bandwidthMeter.getTotalBytes();
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    void onTaskCompleted() {
+        windowSuccesses.incrementAndGet();
+    }
+
+    // Timeouts, retries and failures.
+    void onTaskError() {
+        windowErrors.incrementAndGet();
+    }
+
+    void evaluate() {
+        final long now = SystemClock.elapsedRealtime();
+        final long elapsed = now - windowStart;
+        if (elapsed <= 0) {
+            return;
+        }
+        windowStart = now;
+
+        final long totalBytes = bandwidthMeter.getTotalBytes();
+        final long bytes = totalBytes - windowStartBytes;
+        windowStartBytes = totalBytes;
+        final int successes = windowSuccesses.getAndSet(0);
+        final int errors = windowErrors.getAndSet(0);
+
+        final float throughput = bytes * 1000f / elapsed;
+        final int attempts = successes + errors;
+        final float errorRate = attempts > 0 ? (float) errors / attempts : 0;
+
+        int newWorkers = workers;
+
+        if (errors > 0 && errorRate > ERROR_RATE_THRESHOLD) {
+            // Congestion: multiplicative decrease.
+            newWorkers = workers / 2;
+            lastStepWasIncrease = false;
+            holdWindows = HOLD_WINDOWS;
+
+        } else if (bytes == 0) {
+            // Idle -- nothing to learn from this window.
+            return;
+
+        } else if (lastStepWasIncrease && throughput < lastThroughput * (1 + MIN_THROUGHPUT_GAIN)) {
+            // The last worker didn't buy us anything; the link is saturated.
+            newWorkers = workers - 1;
+            lastStepWasIncrease = false;
+            holdWindows = HOLD_WINDOWS;
+
+        } else if (holdWindows > 0) {
+            holdWindows--;
+            lastStepWasIncrease = false;
+
+        } else {
+            // Additive increase.
+            newWorkers = workers + 1;
+            lastStepWasIncrease = true;
+        }
+
+        lastThroughput = throughput;
+
+        newWorkers = Math.min(maxWorkers, Math.max(minWorkers, newWorkers));
+        if (newWorkers != workers) {
+            Log.d(TAG, "workers: " + workers + " -> " + newWorkers + "; throughput=" + (long) throughput + " B/s errorRate=" + errorRate);
+            workers = newWorkers;
+            listener.onWorkersChanged(newWorkers);
+        } else if (lastStepWasIncrease) {
+            // Already at the maximum, nothing was added.
+            lastStepWasIncrease = false;
+        }
+    }
+
+    interface Listener {
+        void onWorkersChanged(int workers);
+    }
+}
@@ -2,9 +2,14 @@ package com.kaltura.dtg;
 
 import android.content.Context;
 
+import androidx.annotation.Nullable;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 public abstract class ContentManager {
     private static final String VERSION_STRING = BuildConfig.VERSION_NAME;
@@ -82,6 +87,30 @@ public abstract class ContentManager {
      */
     public abstract long getEstimatedItemSize(String itemId) throws IllegalStateException;
 
+    /**
+     * Limit the total download rate of all items. Takes effect immediately.
+     *
+     * @param bytesPerSecond limit, or 0 for no limit.
+     */
+    public abstract void setBandwidthLimit(long bytesPerSecond) throws IllegalStateException;
+
+    /**
+     * Limit the download rate of a single item. Applies in addition to the global limit.
+     *
+     * @param itemId         item
+     * @param bytesPerSecond limit, or 0 for no limit.
+     */
+    public abstract void setItemBandwidthLimit(String itemId, long bytesPerSecond) throws IllegalStateException;
+
+    /**
+     * Returns the estimated time to finish downloading an item, based on its remaining bytes and
+     * the measured download bandwidth.
+     *
+     * @param itemId item
+     * @return time in milliseconds, 0 if the item is complete, or -1 if unknown.
+     */
+    public abstract long getEstimatedTimeRemainingMs(String itemId) throws IllegalStateException;
+
     /**
      * Create a new item. Does not start the download and does not retrieve metadata from the network.
      * Use {@link DownloadItem#loadMetadata()} to load metadata and inspect it.
@@ -99,6 +128,35 @@ public abstract class ContentManager {
      */
     public abstract void removeItem(String itemId) throws IllegalStateException;
 
+    // Batch operations: same as calling the single-item methods for each item, but with one db
+    // transaction for all of them.
+
+    /**
+     * Create new items. Items that already exist are skipped.
+     *
+     * @param contentURLs content URL by item id
+     * @return the items that were created
+     */
+    public abstract List<DownloadItem> createItems(Map<String, String> contentURLs) throws IllegalStateException, IllegalArgumentException, IOException;
+
+    /**
+     * Start or resume downloading items. Tasks of all items are queued before downloading starts,
+     * so item priorities apply from the first task.
+     *
+     * @param items items with loaded metadata
+     */
+    public abstract void startDownloads(List<DownloadItem> items) throws IllegalStateException;
+
+    /**
+     * Pause downloading items.
+     */
+    public abstract void pauseDownloads(List<DownloadItem> items) throws IllegalStateException;
+
+    /**
+     * Remove items entirely. Deletes all files and db records.
+     */
+    public abstract void removeItems(List<String> itemIds) throws IllegalStateException;
+
     public abstract File getAppDataDir(String itemId);
 
     /**
@@ -125,14 +183,91 @@ public abstract class ContentManager {
      */
     public abstract File getLocalFile(String itemId);
 
+    // Async API: the calls below return immediately; the work is done on a background thread.
+    // The result is passed to the listener on the given executor (e.g. the main thread's), and can also be read
+    // from the returned Future. If executor is null, the listener is called on a background thread.
+    // The queries read the db on a separate connection and never wait for the download engine's db writes.
+    // Items that haven't been used recently may show progress as of the last db commit (see Settings.dbGroupCommitIntervalMs).
+    // createItemAsync is a write: it doesn't block the caller, but its background work waits for the db like createItem.
+
+    /**
+     * Async version of {@link #findItem(String)}.
+     */
+    public abstract Future<DownloadItem> findItemAsync(String itemId, @Nullable Executor executor, @Nullable ResultListener<DownloadItem> listener) throws IllegalStateException;
+
+    /**
+     * Async version of {@link #getDownloads(DownloadState...)}.
+     */
+    public abstract Future<List<DownloadItem>> getDownloadsAsync(@Nullable Executor executor, @Nullable ResultListener<List<DownloadItem>> listener, DownloadState... states) throws IllegalStateException;
+
+    /**
+     * Async version of {@link #getEstimatedItemSize(String)}.
+     */
+    public abstract Future<Long> getEstimatedItemSizeAsync(String itemId, @Nullable Executor executor, @Nullable ResultListener<Long> listener) throws IllegalStateException;
+
+    /**
+     * Async version of {@link #createItem(String, String)}. Invalid arguments are reported by throwing,
+     * failure to create the item is passed to the listener.
+     * Unlike the async queries, the item is written through the db's write lock, so the result may
+     * be delayed by a pending group commit of download progress. Async queries that run before it
+     * completes don't see the new item.
+     */
+    public abstract Future<DownloadItem> createItemAsync(String itemId, String contentURL, @Nullable Executor executor, @Nullable ResultListener<DownloadItem> listener) throws IllegalStateException, IllegalArgumentException;
+
     public abstract boolean isStarted();
 
     public abstract Settings getSettings();
 
+    /**
+     * Get a snapshot of the download engine metrics.
+     *
+     * @return Metrics
+     */
+    public abstract Metrics getMetrics() throws IllegalStateException;
+
     public interface OnStartedListener {
         void onStarted();
     }
 
+    public interface ResultListener<T> {
+        /**
+         * @param result the result; null if there was an error.
+         * @param error  null on success.
+         */
+        void onResult(@Nullable T result, @Nullable Exception error);
+    }
+
+    public interface MetricsListener {
+        /**
+         * Called when the adaptive concurrency controller changes the number of download workers.
+         */
+        void onConcurrencyChanged(int concurrentDownloads);
+    }
+
+    public static class Metrics {
+        public long bufferPoolHits;
+        public long bufferPoolMisses;
+        public long bufferPoolBytesInUse;
+        public long connectionsOpened = -1;     // -1 unless the transport reports them (HttpTransport.ConnectionStats);
+        public long connectionsReused = -1;     // DefaultHttpTransport doesn't, OkHttpTransport does
+        public float connectionReuseRatio = -1;
+        public int concurrentDownloads;
+        public long currentThroughput;  // bytes/sec, last second
+        public long medianThroughput;   // bytes/sec
+        public Map<String, HostLoad> hostLoad;  // by host (URL authority)
+        public Map<String, DbTrace.Histogram> dbLatency;    // by db operation; null unless dbTraceSink is set
+        public long itemCacheHits;
+        public long itemCacheMisses;     // item read from the db
+        public long itemCacheEvictions;
+        public long itemCacheFlushedRows;   // downloaded sizes written to the db
+        public Map<String, Long> retries;   // by cause: TIMEOUT, SERVER_ERROR (5xx), RATE_LIMITED (429), CONNECTION_RESET
+
+        public static class HostLoad {
+            public int queued;      // waiting for a worker
+            public int inFlight;    // currently downloading
+        }
+    }
+
     public static class Settings implements Cloneable {
         public int maxDownloadRetries = 5;
         public int httpTimeoutMillis = 15000;
@@ -144,6 +279,31 @@ public abstract class ContentManager {
         public DownloadRequestParams.Adapter downloadRequestAdapter;
         public DownloadRequestParams.Adapter chunksUrlAdapter;
         public boolean crossProtocolRedirectEnabled = false;
+        public boolean nioTransferEnabled = false;  // write segments through a FileChannel using a large direct buffer
+        public int nioTransferBufferSize = 256 * 1024;
+        public int maxPooledBuffers = 8;    // idle download buffers kept for reuse
+        public int httpMaxIdleConnections = 8;  // idle keep-alive connections of DefaultHttpTransport, all hosts together.
+        public long httpKeepAliveMillis = 60 * 1000;    // Best-effort: process-wide, and ignored after the first HTTP request
+        public HttpTransport httpTransport;     // null: DefaultHttpTransport
+        public boolean adaptiveConcurrencyEnabled = false;  // start with maxConcurrentDownloads, then adapt
+        public int minAdaptiveConcurrentDownloads = 1;
+        public int maxAdaptiveConcurrentDownloads = 8;
+        public MetricsListener metricsListener;
+        public long maxBandwidthBytesPerSecond = 0;  // 0: unlimited; see setBandwidthLimit()
+        public int maxQueuedTasksPerItem = 64;  // tasks are read from the db in pages of this size
+        public int dbGroupCommitIntervalMs = 500;   // segment completions are written to the db in batches,
+        public int dbGroupCommitMaxRows = 64;       // at this interval or when this many are waiting
+        public DbTrace.Sink dbTraceSink;    // null: db tracing disabled
+        public boolean compactTaskStorage = false;  // one db row per track (segment list + completion bitmap) instead of one per segment
+        public int maxConcurrentDownloadsPerHost = 0;   // 0: unlimited; otherwise other hosts get the remaining workers
+        public int maxCachedItems = 64;     // items kept in memory; items with unsaved progress are kept in addition
+        public long retryBaseDelayMs = 1000;    // delay before the first retry of a failed segment, doubled for each further retry,
+        public long maxRetryDelayMs = 30000;    // up to this; also caps the wait for a Retry-After from the server
+        public int maxFailedSegments = 0;           // an item fails when more of its segments have failed than this or than
+        public float maxFailedSegmentsPercent = 0;  // this percentage, whichever is larger; until then, failed segments are retried after the others
+        public int failedSegmentRetryPasses = 2;    // times the failed segments are retried before the item fails
+        public int rangedDownloadConnections = 1;   // simple (mp4, mp3, wvm) files of at least rangedDownloadMinBytes are
+        public long rangedDownloadMinBytes = 32 * 1024 * 1024;  // downloaded in this many parallel ranges; 1 (default): one connection
 
         Settings copy() {
             try {
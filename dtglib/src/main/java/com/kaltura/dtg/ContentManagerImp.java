@@ -9,8 +9,12 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 
 public class ContentManagerImp extends ContentManager {
@@ -66,6 +70,11 @@ public class ContentManagerImp extends ContentManager {
             postToListeners(L -> L.onDownloadMetadata(item, error));
         }
 
+        @Override
+        public void onSegmentFailure(DownloadItem item, String url, Exception error) {
+            postToListeners(L -> L.onSegmentFailure(item, url, error));
+        }
+
         @Override
         public void onTracksAvailable(DownloadItem item, DownloadItem.TrackSelector trackSelector) {
             postToListeners(L -> L.onTracksAvailable(item, trackSelector));
@@ -152,9 +161,8 @@ public class ContentManagerImp extends ContentManager {
                 started = true;
                 if (autoResumeItemsInProgress) {
                     // Resume all downloads that were in progress on stop.
-                    List<DownloadItem> downloads = getDownloads(DownloadState.IN_PROGRESS);
-                    for (DownloadItem download : downloads) {
-                        download.startDownload();
+                    if (!serviceProxy.resumeFromSnapshot()) {
+                        startDownloads(getDownloads(DownloadState.IN_PROGRESS));
                     }
                 }
 
@@ -170,10 +178,7 @@ public class ContentManagerImp extends ContentManager {
         checkIfManagerStarted();
         assertProvider();
 
-        List<DownloadItem> downloads = getDownloads(DownloadState.IN_PROGRESS);
-        for (DownloadItem item : downloads) {
-            serviceProxy.pauseDownload(item);
-        }
+        serviceProxy.pauseDownloads(getDownloads(DownloadState.IN_PROGRESS));
     }
 
     @Override
@@ -181,10 +186,7 @@ public class ContentManagerImp extends ContentManager {
         checkIfManagerStarted();
         assertProvider();
 
-        List<DownloadItem> downloads = getDownloads(DownloadState.PAUSED);
-        for (DownloadItem item : downloads) {
-            serviceProxy.resumeDownload(item);
-        }
+        serviceProxy.startDownloads(getDownloads(DownloadState.PAUSED));
     }
 
     @Override
@@ -225,6 +227,37 @@ public class ContentManagerImp extends ContentManager {
         return serviceProxy.createItem(itemId, downloadRequestParams.url.toString());
     }
 
+    @Override
+    public Future<DownloadItem> findItemAsync(String itemId, Executor executor, ResultListener<DownloadItem> listener) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProviderAndItem(itemId);
+        return serviceProxy.findItemAsync(itemId, executor, listener);
+    }
+
+    @Override
+    public Future<List<DownloadItem>> getDownloadsAsync(Executor executor, ResultListener<List<DownloadItem>> listener, DownloadState... states) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProvider();
+        return serviceProxy.getDownloadsAsync(states, executor, listener);
+    }
+
+    @Override
+    public Future<Long> getEstimatedItemSizeAsync(String itemId, Executor executor, ResultListener<Long> listener) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProviderAndItem(itemId);
+        return serviceProxy.getEstimatedItemSizeAsync(itemId, executor, listener);
+    }
+
+    @Override
+    public Future<DownloadItem> createItemAsync(String itemId, String contentURL, Executor executor, ResultListener<DownloadItem> listener) throws IllegalStateException, IllegalArgumentException {
+        checkIfManagerStarted();
+        assertItemInput(itemId, contentURL);
+        itemId = safeItemId(itemId);
+        assertProviderAndItem(itemId);
+        DownloadRequestParams downloadRequestParams = adapter.adapt(new DownloadRequestParams(Uri.parse(contentURL), null));
+        return serviceProxy.createItemAsync(itemId, downloadRequestParams.url.toString(), executor, listener);
+    }
+
     private String safeItemId(String itemId) {
         // The only forbidden chars are null and slash
         return itemId.replace('/', '-').replace('\0', '-');
@@ -251,6 +284,52 @@ public class ContentManagerImp extends ContentManager {
         serviceProxy.removeItem(item);
     }
 
+    @Override
+    public List<DownloadItem> createItems(Map<String, String> contentURLs) throws IllegalStateException, IllegalArgumentException, IOException {
+        checkIfManagerStarted();
+        assertProvider();
+
+        final Map<String, String> adapted = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : contentURLs.entrySet()) {
+            final String contentURL = entry.getValue();
+            assertItemInput(entry.getKey(), contentURL);
+            DownloadRequestParams downloadRequestParams = adapter.adapt(new DownloadRequestParams(Uri.parse(contentURL), null));
+            adapted.put(safeItemId(entry.getKey()), downloadRequestParams.url.toString());
+        }
+        return new ArrayList<>(serviceProxy.createItems(adapted));
+    }
+
+    @Override
+    public void startDownloads(List<DownloadItem> items) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProvider();
+        serviceProxy.startDownloads(items);
+    }
+
+    @Override
+    public void pauseDownloads(List<DownloadItem> items) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProvider();
+        serviceProxy.pauseDownloads(items);
+    }
+
+    @Override
+    public void removeItems(List<String> itemIds) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProvider();
+
+        final List<DownloadItem> items = new ArrayList<>(itemIds.size());
+        for (String itemId : itemIds) {
+            DownloadItem item = findItem(itemId);
+            if (item == null) {
+                throw new IllegalStateException("DownloadItem Is Null");
+            }
+            items.add(item);
+        }
+
+        serviceProxy.removeItems(items);
+    }
+
     private File getItemDir(String itemId) {
         return new File(Storage.getItemsDir(), itemId);
     }
@@ -296,6 +375,34 @@ public class ContentManagerImp extends ContentManager {
         }
     }
 
+    @Override
+    public void setBandwidthLimit(long bytesPerSecond) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProvider();
+        serviceProxy.setBandwidthLimit(bytesPerSecond);
+    }
+
+    @Override
+    public void setItemBandwidthLimit(String itemId, long bytesPerSecond) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProviderAndItem(itemId);
+        serviceProxy.setItemBandwidthLimit(itemId, bytesPerSecond);
+    }
+
+    @Override
+    public long getEstimatedTimeRemainingMs(String itemId) throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProviderAndItem(itemId);
+        return serviceProxy.getEstimatedTimeRemainingMs(itemId);
+    }
+
+    @Override
+    public Metrics getMetrics() throws IllegalStateException {
+        checkIfManagerStarted();
+        assertProvider();
+        return serviceProxy.getMetrics();
+    }
+
     @Override
     public Settings getSettings() {
         if (started) {
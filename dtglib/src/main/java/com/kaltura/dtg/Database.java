@@ -7,27 +7,30 @@ import android.database.SQLException;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
-import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 class Database {
-    private static final int DB_VERSION = 3;
+    static final int DB_VERSION = 8;
     private static final String TBL_DOWNLOAD_FILES = "Files";
+    private static final String COL_FILE_ID = "FileID";
     private static final String COL_FILE_URL = "FileURL";
     private static final String COL_TARGET_FILE = "TargetFile";
     private static final String TBL_ITEMS = "Items";
@@ -42,9 +45,16 @@ class Database {
     static final String COL_ITEM_DOWNLOADED_SIZE = "ItemDownloadedSize";
     static final String COL_ITEM_PLAYBACK_PATH = "ItemPlaybackPath";
     static final String COL_ITEM_DURATION = "ItemDuration";
+    // Counters, updated in the same transaction as the tasks they count
+    private static final String COL_ITEM_TOTAL_FILES = "ItemTotalFiles";
+    private static final String COL_ITEM_PENDING_FILES = "ItemPendingFiles";
+    private static final String COL_TRACK_TOTAL_FILES = "TrackTotalFiles";
+    private static final String COL_TRACK_PENDING_FILES = "TrackPendingFiles";
+    private static final String COL_TRACK_DOWNLOADED_BYTES = "TrackDownloadedBytes";
     private static final String[] ALL_ITEM_COLS = new String[]{COL_ITEM_ID, COL_CONTENT_URL,
             COL_ITEM_STATE, COL_ITEM_ADD_TIME, COL_ITEM_ESTIMATED_SIZE, COL_ITEM_DOWNLOADED_SIZE,
-            COL_ITEM_PLAYBACK_PATH, COL_ITEM_DATA_DIR, COL_ITEM_DURATION};
+            COL_ITEM_PLAYBACK_PATH, COL_ITEM_DATA_DIR, COL_ITEM_DURATION,
+            COL_ITEM_TOTAL_FILES, COL_ITEM_PENDING_FILES};
     private static final String TAG = "Database";
     private static final String TBL_TRACK = "Track";
     static final String COL_TRACK_ID = "TrackId";
@@ -56,51 +66,54 @@ class Database {
     static final String COL_TRACK_REL_ID = "TrackRelativeId";
     static final String COL_TRACK_CODECS = "TrackCodecs";
     private static final String COL_FILE_COMPLETE = "FileComplete";
+    private static final String TBL_RESUME_INFO = "ResumeInfo";
+    private static final String COL_VALIDATOR = "Validator";
+    private static final String COL_EXPECTED_LENGTH = "ExpectedLength";
+    private static final String TBL_FILE_RANGES = "FileRanges";
+    private static final String COL_RANGE_POSITION = "RangePosition";
+    private static final String COL_RANGE_END = "RangeEnd";
+    private static final String COL_FILE_LENGTH = "FileLength";
 
     private static final String EXTFILES_SCHEME = "extfiles";
 
     private final SQLiteOpenHelper helper;
     private final SQLiteDatabase database;
     private final String externalFilesDir;
+    private final TrackTaskStore trackTaskStore;    // null: tasks are stored as Files rows
+
+    // Write-behind queue, see flushPendingWrites()
+    private final List<DownloadTask> pendingCompletions = new ArrayList<>();
+    private final Map<String, ContentValues> pendingItemUpdates = new LinkedHashMap<>();   // also locked by readers, see readItemsConcurrently()
+    private final Map<String, DownloadTask> pendingResumeInfo = new LinkedHashMap<>();    // by relative target file
+    private final Map<String, RangedDownload> pendingRanges = new LinkedHashMap<>();     // by relative target file
+    private final Set<String> pendingResumeInfoDeletes = new LinkedHashSet<>();     // completed files with a ResumeInfo row
+    private final Set<String> pendingRangeDeletes = new LinkedHashSet<>();      // completed ranged files
+    private volatile int flushCount;
+    private int groupCommitMaxRows = 64;
+
+    private final DbTrace trace;    // null: tracing disabled
+    private int traceRows;          // rows affected by the current operation, if known
+
+    private long traceBegin(DbTrace.Op op) {
+        if (trace == null) return 0;
+        traceRows = 0;
+        return trace.begin(op);
+    }
 
-    private BufferedWriter traceWriter;
-    private long start;// = SystemClock.elapsedRealtime();
-
-    private void trace(String funcName, Object... args) {
-        if (start == 0) return;
-        try {
-            traceWriter.append(String.valueOf(SystemClock.elapsedRealtime() - start));
-            traceWriter.append(' ');
-            traceWriter.append(funcName).append('\t');
-            for (Object arg : args) {
-                if (arg instanceof Object[]) {
-                    traceWriter.append('[');
-                    for (Object s : ((Object[]) arg)) {
-                        traceWriter.append(String.valueOf(s));
-
-                    }
-                    traceWriter.append(']');
-                } else {
-                    traceWriter.append(String.valueOf(arg));
-                }
-                traceWriter.append(' ');
-            }
-            traceWriter.newLine();
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
+    private void traceEnd(DbTrace.Op op, long startNanos) {
+        if (trace == null) return;
+        trace.end(op, startNanos, traceRows);
     }
 
+    @Nullable
+    Map<String, DbTrace.Histogram> getTraceHistograms() {
+        return trace != null ? trace.getHistograms() : null;
+    }
 
-    Database(File dbFile, final Context context) {
+    Database(File dbFile, final Context context, boolean compactTaskStorage, @Nullable DbTrace.Sink traceSink) {
 
         this.externalFilesDir = Storage.getExtFilesDir().getAbsolutePath();
-
-        try {
-            traceWriter = new BufferedWriter(new FileWriter(dbFile.getParent() + "/dbtrace.txt"));
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
-        }
+        this.trace = traceSink != null ? new DbTrace(traceSink) : null;
 
         helper = new SQLiteOpenHelper(context, dbFile.getAbsolutePath(), null, DB_VERSION) {
 
@@ -117,25 +130,71 @@ class Database {
                         COL_ITEM_ESTIMATED_SIZE, "INTEGER NOT NULL DEFAULT 0",
                         COL_ITEM_DOWNLOADED_SIZE, "INTEGER NOT NULL DEFAULT 0",
                         COL_ITEM_PLAYBACK_PATH, "TEXT",
-                        COL_ITEM_DURATION, "INTEGER"
+                        COL_ITEM_DURATION, "INTEGER",
+                        COL_ITEM_TOTAL_FILES, "INTEGER NOT NULL DEFAULT 0",
+                        COL_ITEM_PENDING_FILES, "INTEGER NOT NULL DEFAULT 0"
                 ));
 
                 createFilesTable(db);
 
                 createTrackTable(db);
+
+                TrackTaskStore.createTable(db, TBL_ITEMS);
+
+                createResumeInfoTable(db);
+
+                createFileRangesTable(db);
+            }
+
+            // The parts still to be fetched of files downloaded in parallel ranges, see RangedDownload.
+            private void createFileRangesTable(SQLiteDatabase db) {
+                db.execSQL(Utils.createTable(
+                        TBL_FILE_RANGES,
+                        COL_TARGET_FILE, "TEXT NOT NULL",
+                        COL_ITEM_ID, "TEXT NOT NULL REFERENCES " + TBL_ITEMS + "(" + COL_ITEM_ID + ") ON DELETE CASCADE",
+                        COL_RANGE_POSITION, "INTEGER NOT NULL",
+                        COL_RANGE_END, "INTEGER NOT NULL",
+                        COL_FILE_LENGTH, "INTEGER NOT NULL",
+                        COL_VALIDATOR, "TEXT"
+                ));
+                db.execSQL(Utils.createIndex(TBL_FILE_RANGES, COL_ITEM_ID));
+                db.execSQL(Utils.createIndex(TBL_FILE_RANGES, COL_TARGET_FILE));
+            }
+
+            // Validators and lengths of partially downloaded files, for resuming them with If-Range.
+            private void createResumeInfoTable(SQLiteDatabase db) {
+                db.execSQL(Utils.createTable(
+                        TBL_RESUME_INFO,
+                        COL_TARGET_FILE, "TEXT PRIMARY KEY",
+                        COL_ITEM_ID, "TEXT NOT NULL REFERENCES " + TBL_ITEMS + "(" + COL_ITEM_ID + ") ON DELETE CASCADE",
+                        COL_VALIDATOR, "TEXT",
+                        COL_EXPECTED_LENGTH, "INTEGER NOT NULL DEFAULT -1"
+                ));
+                db.execSQL(Utils.createIndex(TBL_RESUME_INFO, COL_ITEM_ID));
             }
 
             private void createFilesTable(SQLiteDatabase db) {
                 db.execSQL(Utils.createTable(
                         TBL_DOWNLOAD_FILES,
+                        COL_FILE_ID, "INTEGER PRIMARY KEY",     // alias of ROWID
                         COL_ITEM_ID, "TEXT NOT NULL REFERENCES " + TBL_ITEMS + "(" + COL_ITEM_ID + ") ON DELETE CASCADE",
                         COL_FILE_URL, "TEXT NOT NULL",
                         COL_TARGET_FILE, "TEXT NOT NULL",
                         COL_TRACK_REL_ID, "TEXT",
                         COL_FILE_COMPLETE, "INTEGER NOT NULL DEFAULT 0",
-                        COL_FILE_ORDER, "INTEGER"
+                        COL_FILE_ORDER, "INTEGER NOT NULL DEFAULT " + DownloadTask.UNKNOWN_ORDER
                 ));
+                createFilesIndexes(db);
+            }
+
+            private void createFilesIndexes(SQLiteDatabase db) {
                 db.execSQL(Utils.createUniqueIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_URL));
+                // Ordered pending reads and per-item pending counts. FileID is implicitly the last column.
+                db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_COMPLETE, COL_FILE_ORDER));
+                // Per-track pending counts
+                db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_TRACK_REL_ID, COL_FILE_COMPLETE));
+                // Completion of tasks that were created without a FileID
+                db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_TARGET_FILE));
             }
 
             private void createTrackTable(SQLiteDatabase db) {
@@ -149,7 +208,10 @@ class Database {
                         COL_TRACK_REL_ID, "TEXT NOT NULL",
                         COL_TRACK_EXTRA, "TEXT",
                         COL_TRACK_CODECS, "TEXT",
-                        COL_ITEM_ID, "TEXT NOT NULL REFERENCES " + TBL_ITEMS + "(" + COL_ITEM_ID + ") ON DELETE CASCADE"
+                        COL_ITEM_ID, "TEXT NOT NULL REFERENCES " + TBL_ITEMS + "(" + COL_ITEM_ID + ") ON DELETE CASCADE",
+                        COL_TRACK_TOTAL_FILES, "INTEGER NOT NULL DEFAULT 0",
+                        COL_TRACK_PENDING_FILES, "INTEGER NOT NULL DEFAULT 0",
+                        COL_TRACK_DOWNLOADED_BYTES, "INTEGER NOT NULL DEFAULT 0"
                 ));
                 db.execSQL(Utils.createUniqueIndex(TBL_TRACK, COL_ITEM_ID, COL_TRACK_REL_ID));
             }
@@ -188,6 +250,60 @@ class Database {
                     changeTargetFileToRelative(db);
                 }
 
+                if (oldVersion < 4) {
+                    // Recreate Files with an explicit integer key, keeping the existing ROWIDs,
+                    // and a non-null order so that ordered reads can use an index.
+                    // Renaming keeps the indexes on OLD_Files; drop them first (the v2 upgrade above creates them too).
+                    db.execSQL("DROP INDEX IF EXISTS unique_Files_ItemID_FileURL");
+                    db.execSQL("DROP INDEX IF EXISTS idx_Files_ItemID_FileComplete_OrderInTrack");
+                    db.execSQL("DROP INDEX IF EXISTS idx_Files_ItemID_TrackRelativeId_FileComplete");
+                    db.execSQL("DROP INDEX IF EXISTS idx_Files_TargetFile");
+                    db.execSQL(Utils.format("ALTER TABLE %s RENAME TO OLD_%s", TBL_DOWNLOAD_FILES, TBL_DOWNLOAD_FILES));
+                    createFilesTable(db);
+
+                    db.execSQL(Utils.format("INSERT INTO %s(%s,%s,%s,%s,%s,%s,%s) SELECT ROWID, %s, %s, %s, %s, %s, IFNULL(%s,%d) FROM OLD_%s",
+                            TBL_DOWNLOAD_FILES, COL_FILE_ID, COL_ITEM_ID, COL_FILE_URL, COL_TARGET_FILE, COL_TRACK_REL_ID, COL_FILE_COMPLETE, COL_FILE_ORDER,
+                            COL_ITEM_ID, COL_FILE_URL, COL_TARGET_FILE, COL_TRACK_REL_ID, COL_FILE_COMPLETE, COL_FILE_ORDER, DownloadTask.UNKNOWN_ORDER,
+                            TBL_DOWNLOAD_FILES));
+                    db.execSQL(Utils.format("DROP TABLE OLD_%s", TBL_DOWNLOAD_FILES));
+                }
+
+                if (oldVersion < 5) {
+                    // Compact task storage. Rows are moved between the tables when the db is opened.
+                    TrackTaskStore.createTable(db, TBL_ITEMS);
+                }
+
+                if (oldVersion < 6) {
+                    // Persistent file counters, computed once from the task tables.
+                    // The bytes of files downloaded before this version aren't counted.
+                    for (String col : strings(COL_ITEM_TOTAL_FILES, COL_ITEM_PENDING_FILES)) {
+                        db.execSQL(Utils.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0", TBL_ITEMS, col));
+                    }
+                    for (String col : strings(COL_TRACK_TOTAL_FILES, COL_TRACK_PENDING_FILES, COL_TRACK_DOWNLOADED_BYTES)) {
+                        db.execSQL(Utils.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0", TBL_TRACK, col));
+                    }
+
+                    final String filesCount = "(SELECT COUNT(*) FROM " + TBL_DOWNLOAD_FILES + " f WHERE f." + COL_ITEM_ID + "==%1$s." + COL_ITEM_ID + "%2$s)";
+                    final String pending = " AND f." + COL_FILE_COMPLETE + "==0";
+                    final String sameTrack = " AND f." + COL_TRACK_REL_ID + "==" + TBL_TRACK + "." + COL_TRACK_REL_ID;
+                    db.execSQL("UPDATE " + TBL_ITEMS + " SET " +
+                            COL_ITEM_TOTAL_FILES + "=" + Utils.format(filesCount, TBL_ITEMS, "") + "+" + TrackTaskStore.countSubquery(TBL_ITEMS, null, false) + ", " +
+                            COL_ITEM_PENDING_FILES + "=" + Utils.format(filesCount, TBL_ITEMS, pending) + "+" + TrackTaskStore.countSubquery(TBL_ITEMS, null, true));
+                    db.execSQL("UPDATE " + TBL_TRACK + " SET " +
+                            COL_TRACK_TOTAL_FILES + "=" + Utils.format(filesCount, TBL_TRACK, sameTrack) + "+" + TrackTaskStore.countSubquery(TBL_TRACK, TBL_TRACK, false) + ", " +
+                            COL_TRACK_PENDING_FILES + "=" + Utils.format(filesCount, TBL_TRACK, sameTrack + pending) + "+" + TrackTaskStore.countSubquery(TBL_TRACK, TBL_TRACK, true));
+                }
+
+                if (oldVersion < 7) {
+                    // Partial files from before this version are resumed without If-Range, as before.
+                    createResumeInfoTable(db);
+                }
+
+                if (oldVersion < 8) {
+                    // Existing items keep downloading over one connection.
+                    createFileRangesTable(db);
+                }
+
                 db.setTransactionSuccessful();
                 db.endTransaction();
             }
@@ -199,7 +315,100 @@ class Database {
                 db.setLocale(Locale.US);
             }
         };
+        // Readers on other threads get their own connection and don't wait for write transactions.
+        helper.setWriteAheadLoggingEnabled(true);
         database = helper.getWritableDatabase();
+
+        final long traceStart = traceBegin(DbTrace.Op.MIGRATE_TASKS);
+        if (compactTaskStorage) {
+            trackTaskStore = new TrackTaskStore(database);
+            moveFilesToTrackTasks();
+        } else {
+            trackTaskStore = null;
+            moveTrackTasksToFiles();
+        }
+        traceEnd(DbTrace.Op.MIGRATE_TASKS, traceStart);
+    }
+
+    private List<String> distinctItemIds(String table) {
+        final List<String> itemIds = new ArrayList<>();
+        try (Cursor cursor = database.query(true, table, new String[]{COL_ITEM_ID}, null, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                itemIds.add(cursor.getString(0));
+            }
+        }
+        return itemIds;
+    }
+
+    // Convert existing Files rows to the compact format, one item per transaction.
+    private void moveFilesToTrackTasks() {
+        for (final String itemId : distinctItemIds(TBL_DOWNLOAD_FILES)) {
+            doTransaction(db -> {
+                final Map<String, TrackTaskStore.Segments> segments = new LinkedHashMap<>();
+                final Map<String, List<Boolean>> complete = new HashMap<>();
+
+                try (Cursor cursor = db.query(TBL_DOWNLOAD_FILES,
+                        new String[]{COL_TRACK_REL_ID, COL_FILE_URL, COL_TARGET_FILE, COL_FILE_ORDER, COL_FILE_COMPLETE},
+                        COL_ITEM_ID + "==?", new String[]{itemId}, null, null, COL_FILE_ID)) {
+
+                    final int count = cursor.getCount();
+                    while (cursor.moveToNext()) {
+                        final String trackId = cursor.getString(0);
+                        TrackTaskStore.Segments trackSegments = segments.get(trackId);
+                        if (trackSegments == null) {
+                            trackSegments = new TrackTaskStore.Segments(count);
+                            segments.put(trackId, trackSegments);
+                            complete.put(trackId, new ArrayList<>());
+                        }
+                        trackSegments.add(cursor.getString(1), cursor.getString(2), cursor.getInt(3));
+                        complete.get(trackId).add(cursor.getInt(4) != 0);
+                    }
+                }
+
+                for (Map.Entry<String, TrackTaskStore.Segments> entry : segments.entrySet()) {
+                    final TrackTaskStore.Segments trackSegments = entry.getValue();
+                    trackSegments.trim();
+                    final List<Boolean> flags = complete.get(entry.getKey());
+                    final boolean[] trackComplete = new boolean[flags.size()];
+                    for (int i = 0; i < trackComplete.length; i++) {
+                        trackComplete[i] = flags.get(i);
+                    }
+                    trackTaskStore.importTrack(itemId, entry.getKey(), trackSegments, trackComplete);
+                }
+
+                db.delete(TBL_DOWNLOAD_FILES, COL_ITEM_ID + "==?", new String[]{itemId});
+                return true;
+            });
+        }
+        trackTaskStore.clearCache();
+    }
+
+    // Convert compact rows back to Files rows, if compact storage was turned off.
+    private void moveTrackTasksToFiles() {
+        final List<String> itemIds = distinctItemIds(TrackTaskStore.TBL_TRACK_TASKS);
+        if (itemIds.isEmpty()) {
+            return;
+        }
+        final TrackTaskStore store = new TrackTaskStore(database);
+        for (final String itemId : itemIds) {
+            doTransaction(db -> {
+                final ContentValues values = new ContentValues();
+                for (TrackTaskStore.ExpandedTrack track : store.expand(itemId)) {
+                    final TrackTaskStore.Segments segments = track.segments;
+                    for (int i = 0; i < segments.size(); i++) {
+                        values.put(COL_ITEM_ID, itemId);
+                        values.put(COL_FILE_URL, segments.urls[i]);
+                        values.put(COL_TARGET_FILE, segments.targets[i]);
+                        values.put(COL_TRACK_REL_ID, track.trackRelativeId);
+                        values.put(COL_FILE_ORDER, segments.orders[i]);
+                        values.put(COL_FILE_COMPLETE, track.complete[i] ? 1 : 0);
+                        db.insertWithOnConflict(TBL_DOWNLOAD_FILES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                    }
+                }
+                store.removeItem(itemId);
+                return true;
+            });
+        }
     }
 
     // Only to be called from onUpgrade()
@@ -238,67 +447,256 @@ class Database {
         }
     }
 
+    /**
+     * Run several operations in one transaction, holding the db lock. Writes queued for the next
+     * group commit are committed with it. The operations must not throw.
+     */
+    synchronized void runBatch(Runnable batch) {
+        flushPendingWrites();
+
+        database.beginTransaction();
+        try {
+            batch.run();
+            flushPendingWrites();
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+            // Readers that started during the batch read the db as it was before it.
+            synchronized (pendingItemUpdates) {
+                flushCount++;
+            }
+        }
+    }
+
     synchronized void close() {
+        flushPendingWrites();
+
         database.close();
         helper.close();
     }
 
     synchronized void addDownloadTasksToDB(final DownloadItem item, final List<DownloadTask> downloadTasks) {
-        trace("addDownloadTasksToDB", item.getItemId(), downloadTasks.size());
-
-        doTransaction(db -> {
-            ContentValues values = new ContentValues();
-            for (DownloadTask task : downloadTasks) {
-                values.put(COL_ITEM_ID, item.getItemId());
-                values.put(COL_FILE_URL, task.url.toString());
-                values.put(COL_TARGET_FILE, relativeExtFilesPath(task.targetFile));
-                values.put(COL_TRACK_REL_ID, task.trackRelativeId);
-                values.put(COL_FILE_ORDER, task.order);
-                try {
-                    long rowid = db.insertWithOnConflict(TBL_DOWNLOAD_FILES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
-                    if (rowid <= 0) {
-//                            Log.d(TAG, "Warning: task not added:" + task.targetFile);
+        flushPendingWrites();
+
+        final long traceStart = traceBegin(DbTrace.Op.ADD_TASKS);
+        try {
+            traceRows = downloadTasks.size();
+            if (trackTaskStore != null) {
+                final List<String> relativePaths = new ArrayList<>(downloadTasks.size());
+                for (DownloadTask task : downloadTasks) {
+                    relativePaths.add(relativeExtFilesPath(task.targetFile));
+                }
+                doTransaction(db -> {
+                    final Map<String, Integer> added = trackTaskStore.addTasks(item.getItemId(), downloadTasks, relativePaths);
+                    for (Map.Entry<String, Integer> entry : added.entrySet()) {
+                        addToCounters(db, item.getItemId(), entry.getKey(), entry.getValue(), entry.getValue(), 0);
                     }
-                } catch (SQLException e) {
-                    if (!Thread.currentThread().isInterrupted()) {
-                        Log.e(TAG, "Failed to INSERT task: " + task.targetFile, e);
-                    } else {
-                        //Log.d(TAG, "Thread Interrupted in Database addDownloadTasksToDB");
+                    addFileRanges(db, item.getItemId(), downloadTasks);
+                    return true;
+                });
+                return;
+            }
+
+            doTransaction(db -> {
+                final Map<String, Integer> added = new HashMap<>();
+                ContentValues values = new ContentValues();
+                for (DownloadTask task : downloadTasks) {
+                    values.put(COL_ITEM_ID, item.getItemId());
+                    values.put(COL_FILE_URL, task.url.toString());
+                    values.put(COL_TARGET_FILE, relativeExtFilesPath(task.targetFile));
+                    values.put(COL_TRACK_REL_ID, task.trackRelativeId);
+                    values.put(COL_FILE_ORDER, task.order);
+                    try {
+                        long rowid = db.insertWithOnConflict(TBL_DOWNLOAD_FILES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+                        if (rowid <= 0) {
+    //                            Log.d(TAG, "Warning: task not added:" + task.targetFile);
+                        } else {
+                            final Integer count = added.get(task.trackRelativeId);
+                            added.put(task.trackRelativeId, count != null ? count + 1 : 1);
+                        }
+                    } catch (SQLException e) {
+                        if (!Thread.currentThread().isInterrupted()) {
+                            Log.e(TAG, "Failed to INSERT task: " + task.targetFile, e);
+                        } else {
+                            //Log.d(TAG, "Thread Interrupted in Database addDownloadTasksToDB");
+                        }
                     }
                 }
-            }
-            return true;
-        });
+                for (Map.Entry<String, Integer> entry : added.entrySet()) {
+                    addToCounters(db, item.getItemId(), entry.getKey(), entry.getValue(), entry.getValue(), 0);
+                }
+                addFileRanges(db, item.getItemId(), downloadTasks);
+                return true;
+            });
+        } finally {
+            traceEnd(DbTrace.Op.ADD_TASKS, traceStart);
+        }
     }
 
-    synchronized ArrayList<DownloadTask> readPendingDownloadTasksFromDB(final String itemId) {
-        trace("readPendingDownloadTasksFromDB", itemId);
+    // The initial ranges of new tasks that are downloaded in parallel ranges.
+    private void addFileRanges(SQLiteDatabase db, String itemId, List<DownloadTask> downloadTasks) {
+        for (DownloadTask task : downloadTasks) {
+            if (task.rangedDownload != null) {
+                writeFileRanges(db, itemId, relativeExtFilesPath(task.targetFile), task.rangedDownload);
+            }
+        }
+    }
 
-        final ArrayList<DownloadTask> downloadTasks = new ArrayList<>();
+    // Replace the file's ranges with its remaining ones.
+    private static void writeFileRanges(SQLiteDatabase db, String itemId, String targetFile, RangedDownload rangedDownload) {
+        db.delete(TBL_FILE_RANGES, COL_TARGET_FILE + "==?", new String[]{targetFile});
+        final ContentValues values = new ContentValues();
+        final String validator = rangedDownload.getValidator();
+        for (long[] range : rangedDownload.remaining()) {
+            values.put(COL_TARGET_FILE, targetFile);
+            values.put(COL_ITEM_ID, itemId);
+            values.put(COL_RANGE_POSITION, range[0]);
+            values.put(COL_RANGE_END, range[1]);
+            values.put(COL_FILE_LENGTH, rangedDownload.length);
+            values.put(COL_VALIDATOR, validator);
+            db.insert(TBL_FILE_RANGES, null, values);
+        }
+    }
 
-        Cursor cursor = null;
+    /**
+     * Read a page of pending tasks, in download order. To read the next page, pass the order and
+     * fileId of the last task of the previous page. Paging by key instead of OFFSET keeps each page
+     * cheap, and isn't affected by tasks that complete in the meantime.
+     */
+    synchronized ArrayList<DownloadTask> readPendingDownloadTasksFromDB(final String itemId, int afterOrder, long afterFileId, int limit) {
+        flushPendingWrites();
 
+        final long traceStart = traceBegin(DbTrace.Op.READ_PENDING_TASKS);
         try {
-            cursor = database.query(TBL_DOWNLOAD_FILES, new String[]{COL_FILE_URL, COL_TARGET_FILE, COL_FILE_ORDER},
-                    COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0", new String[]{itemId}, null, null, COL_FILE_ORDER);
+            final ArrayList<DownloadTask> downloadTasks = new ArrayList<>(limit);
+
+            if (trackTaskStore != null) {
+                for (TrackTaskStore.Task pending : trackTaskStore.readPending(itemId, afterOrder, afterFileId, limit)) {
+                    DownloadTask task = new DownloadTask(Uri.parse(pending.url), absoluteExtFilesFile(pending.targetFile), pending.order);
+                    task.itemId = itemId;
+                    task.fileId = pending.taskId;
+                    task.trackRelativeId = pending.trackRelativeId;
+                    downloadTasks.add(task);
+                }
+                readResumeState(itemId, downloadTasks);
+                traceRows = downloadTasks.size();
+                return downloadTasks;
+            }
 
-            while (cursor.moveToNext()) {
-                String url = cursor.getString(0);
-                String file = cursor.getString(1);
-                int order = cursor.isNull(2) ? DownloadTask.UNKNOWN_ORDER : cursor.getInt(2);
+            Cursor cursor = null;
+
+            try {
+                cursor = database.query(TBL_DOWNLOAD_FILES, new String[]{COL_FILE_URL, COL_TARGET_FILE, COL_FILE_ORDER, COL_FILE_ID, COL_TRACK_REL_ID},
+                        COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0 AND (" +
+                                COL_FILE_ORDER + ">? OR (" + COL_FILE_ORDER + "==? AND " + COL_FILE_ID + ">?))",
+                        new String[]{itemId, String.valueOf(afterOrder), String.valueOf(afterOrder), String.valueOf(afterFileId)},
+                        null, null, COL_FILE_ORDER + "," + COL_FILE_ID, String.valueOf(limit));
+
+                while (cursor.moveToNext()) {
+                    String url = cursor.getString(0);
+                    String file = cursor.getString(1);
+                    int order = cursor.isNull(2) ? DownloadTask.UNKNOWN_ORDER : cursor.getInt(2);
 
-                File targetFile = absoluteExtFilesFile(file);
-                DownloadTask task = new DownloadTask(Uri.parse(url), targetFile, order);
-                task.itemId = itemId;
+                    File targetFile = absoluteExtFilesFile(file);
+                    DownloadTask task = new DownloadTask(Uri.parse(url), targetFile, order);
+                    task.itemId = itemId;
+                    task.fileId = cursor.getLong(3);
+                    task.trackRelativeId = cursor.getString(4);
 
-                downloadTasks.add(task);
+                    downloadTasks.add(task);
+                }
+
+            } finally {
+                safeClose(cursor);
             }
 
+            readResumeState(itemId, downloadTasks);
+            traceRows = downloadTasks.size();
+            return downloadTasks;
         } finally {
-            safeClose(cursor);
+            traceEnd(DbTrace.Op.READ_PENDING_TASKS, traceStart);
         }
+    }
 
-        return downloadTasks;
+    // Attach the saved validators, lengths and ranges to the tasks. Only partial files have them.
+    private void readResumeState(String itemId, List<DownloadTask> tasks) {
+        if (tasks.isEmpty()) {
+            return;
+        }
+        final Map<String, DownloadTask> byTargetFile = new HashMap<>(tasks.size());
+        for (DownloadTask task : tasks) {
+            byTargetFile.put(relativeExtFilesPath(task.targetFile), task);
+        }
+        try (Cursor cursor = database.query(TBL_RESUME_INFO, new String[]{COL_TARGET_FILE, COL_VALIDATOR, COL_EXPECTED_LENGTH},
+                COL_ITEM_ID + "==?", new String[]{itemId}, null, null, null)) {
+            while (cursor.moveToNext()) {
+                final DownloadTask task = byTargetFile.get(cursor.getString(0));
+                if (task != null) {
+                    task.validator = cursor.getString(1);
+                    task.expectedLength = cursor.getLong(2);
+                    task.resumeInfoStored = true;
+                }
+            }
+        }
+
+        final Map<String, List<RangedDownload.Range>> ranges = new HashMap<>();
+        final Map<String, Long> lengths = new HashMap<>();
+        final Map<String, String> validators = new HashMap<>();
+        try (Cursor cursor = database.query(TBL_FILE_RANGES, new String[]{COL_TARGET_FILE, COL_RANGE_POSITION, COL_RANGE_END, COL_FILE_LENGTH, COL_VALIDATOR},
+                COL_ITEM_ID + "==?", new String[]{itemId}, null, null, COL_RANGE_POSITION)) {
+            while (cursor.moveToNext()) {
+                final String targetFile = cursor.getString(0);
+                if (!byTargetFile.containsKey(targetFile)) {
+                    continue;
+                }
+                List<RangedDownload.Range> fileRanges = ranges.get(targetFile);
+                if (fileRanges == null) {
+                    fileRanges = new ArrayList<>();
+                    ranges.put(targetFile, fileRanges);
+                    lengths.put(targetFile, cursor.getLong(3));
+                    validators.put(targetFile, cursor.getString(4));
+                }
+                fileRanges.add(new RangedDownload.Range(cursor.getLong(1), cursor.getLong(2)));
+            }
+        }
+        for (Map.Entry<String, List<RangedDownload.Range>> entry : ranges.entrySet()) {
+            final DownloadTask task = byTargetFile.get(entry.getKey());
+            task.rangedDownload = new RangedDownload(task, lengths.get(entry.getKey()), entry.getValue(), validators.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Queue the remaining ranges of the file, written with the next group commit like
+     * {@link #markTaskAsComplete(DownloadTask)}. They're read when the flush happens, so only the
+     * latest state is written.
+     */
+    synchronized void saveFileRanges(final RangedDownload rangedDownload) {
+        final long traceStart = traceBegin(DbTrace.Op.SAVE_RANGES);
+        try {
+            pendingRanges.put(relativeExtFilesPath(rangedDownload.file.targetFile), rangedDownload);
+            flushIfFull();
+        } finally {
+            traceEnd(DbTrace.Op.SAVE_RANGES, traceStart);
+        }
+    }
+
+    /**
+     * Queue the task's validator and expected length, reported by its first response. They're
+     * written with the next group commit like {@link #markTaskAsComplete(DownloadTask)}, read from
+     * the task when the flush happens. The row is deleted in the same transaction that commits the
+     * task's completion, so a file that's complete on disk but still pending in the db is found
+     * complete without a request. Losing them only means the file is downloaded again from the start.
+     */
+    synchronized void saveResumeInfo(final DownloadTask downloadTask) {
+        final long traceStart = traceBegin(DbTrace.Op.SAVE_RESUME_INFO);
+        try {
+            final String targetFile = relativeExtFilesPath(downloadTask.targetFile);
+            pendingResumeInfo.put(targetFile, downloadTask);
+            pendingResumeInfoDeletes.remove(targetFile);
+            flushIfFull();
+        } finally {
+            traceEnd(DbTrace.Op.SAVE_RESUME_INFO, traceStart);
+        }
     }
 
     @NonNull
@@ -327,87 +725,258 @@ class Database {
         throw new IllegalArgumentException("Can't convert filename " + targetFile);
     }
 
+    /**
+     * Queue the task's completion. It's written with the next group commit: when
+     * {@link #groupCommitMaxRows} writes are queued, when {@link #flushPendingWrites()} is called
+     * by the service's timer, or before any other db operation.
+     * If the process dies before that, the task is still pending on restart and DownloadTask
+     * finds the complete file on disk without downloading it again.
+     */
     synchronized void markTaskAsComplete(final DownloadTask downloadTask) {
-        trace("markTaskAsComplete", downloadTask.itemId, downloadTask.taskId);
-
-        doTransaction(db -> {
-            ContentValues values = new ContentValues();
-            values.put(COL_FILE_COMPLETE, 1);
+        final long traceStart = traceBegin(DbTrace.Op.MARK_TASK_COMPLETE);
+        try {
+            if (trackTaskStore != null) {
+                // The in-memory bitmap is updated now; the list is for the counters.
+                final boolean changed = downloadTask.fileId > 0 ?
+                        trackTaskStore.markComplete(downloadTask.itemId, downloadTask.fileId) :
+                        trackTaskStore.markComplete(downloadTask.itemId, relativeExtFilesPath(downloadTask.targetFile));
+                if (!changed) {
+                    return;
+                }
+            }
+            pendingCompletions.add(downloadTask);
+
+            // A complete file doesn't need its resume info or ranges.
+            final String targetFile = relativeExtFilesPath(downloadTask.targetFile);
+            pendingResumeInfo.remove(targetFile);
+            pendingRanges.remove(targetFile);
+            if (downloadTask.resumeInfoStored) {
+                pendingResumeInfoDeletes.add(targetFile);
+                downloadTask.resumeInfoStored = false;
+            }
+            if (downloadTask.rangedDownload != null) {
+                pendingRangeDeletes.add(targetFile);
+            }
+            flushIfFull();
+        } finally {
+            traceEnd(DbTrace.Op.MARK_TASK_COMPLETE, traceStart);
+        }
+    }
 
-            db.updateWithOnConflict(TBL_DOWNLOAD_FILES, values, COL_TARGET_FILE + "==?",
-                    new String[]{relativeExtFilesPath(downloadTask.targetFile)},
-                    SQLiteDatabase.CONFLICT_IGNORE);
-            return true;
-        });
+    synchronized void setGroupCommitMaxRows(int maxRows) {
+        groupCommitMaxRows = Math.max(1, maxRows);
+    }
 
-        trace("markTaskAsComplete done", downloadTask.itemId, downloadTask.taskId);
+    private void flushIfFull() {
+        if (pendingCompletions.size() + pendingItemUpdates.size() + pendingResumeInfo.size() + pendingRanges.size() >= groupCommitMaxRows) {
+            flushPendingWrites();
+        }
     }
 
-    synchronized @Nullable DownloadItemImp findItemInDB(String itemId) {
+    // Write all queued completions and item updates in a single transaction.
+    synchronized void flushPendingWrites() {
+        if (pendingCompletions.isEmpty() && pendingItemUpdates.isEmpty() && pendingResumeInfo.isEmpty()
+                && pendingRanges.isEmpty() && pendingResumeInfoDeletes.isEmpty() && pendingRangeDeletes.isEmpty()) {
+            return;
+        }
 
-        trace("findItemInDB", itemId);
+        final long traceStart = traceBegin(DbTrace.Op.FLUSH);
+        try {
+            traceRows = pendingCompletions.size() + pendingItemUpdates.size() + pendingResumeInfo.size() + pendingRanges.size()
+                    + pendingResumeInfoDeletes.size() + pendingRangeDeletes.size();
+            doTransaction(db -> {
+                List<DownloadTask> completed = pendingCompletions;
+                if (trackTaskStore != null) {
+                    trackTaskStore.flush();
+                } else if (!pendingCompletions.isEmpty()) {
+                    completed = new ArrayList<>(pendingCompletions.size());
+                    final SQLiteStatement byId = db.compileStatement(Utils.format("UPDATE %s SET %s=1 WHERE %s==? AND %s==0",
+                            TBL_DOWNLOAD_FILES, COL_FILE_COMPLETE, COL_FILE_ID, COL_FILE_COMPLETE));
+                    final SQLiteStatement byTargetFile = db.compileStatement(Utils.format("UPDATE %s SET %s=1 WHERE %s==? AND %s==0",
+                            TBL_DOWNLOAD_FILES, COL_FILE_COMPLETE, COL_TARGET_FILE, COL_FILE_COMPLETE));
+                    try {
+                        for (DownloadTask task : pendingCompletions) {
+                            final int changed;
+                            if (task.fileId > 0) {
+                                byId.bindLong(1, task.fileId);
+                                changed = byId.executeUpdateDelete();
+                            } else {
+                                byTargetFile.bindString(1, relativeExtFilesPath(task.targetFile));
+                                changed = byTargetFile.executeUpdateDelete();
+                            }
+                            if (changed > 0) {
+                                completed.add(task);
+                            }
+                        }
+                    } finally {
+                        byId.close();
+                        byTargetFile.close();
+                    }
+                }
 
-        Cursor cursor = null;
-        DownloadItemImp item = null;
+                updateCompletionCounters(db, completed);
 
-        try {
-            cursor = database.query(TBL_ITEMS,
-                    ALL_ITEM_COLS,
-                    COL_ITEM_ID + "==?", new String[]{itemId}, null, null, null);
+                for (Map.Entry<String, ContentValues> entry : pendingItemUpdates.entrySet()) {
+                    db.update(TBL_ITEMS, entry.getValue(), COL_ITEM_ID + "==?", new String[]{entry.getKey()});
+                }
+
+                for (Map.Entry<String, DownloadTask> entry : pendingResumeInfo.entrySet()) {
+                    final DownloadTask task = entry.getValue();
+                    final ContentValues values = new ContentValues();
+                    values.put(COL_TARGET_FILE, entry.getKey());
+                    values.put(COL_ITEM_ID, task.itemId);
+                    values.put(COL_VALIDATOR, task.validator);
+                    values.put(COL_EXPECTED_LENGTH, task.expectedLength);
+                    db.insertWithOnConflict(TBL_RESUME_INFO, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                for (Map.Entry<String, RangedDownload> entry : pendingRanges.entrySet()) {
+                    writeFileRanges(db, entry.getValue().file.itemId, entry.getKey(), entry.getValue());
+                }
+                for (String targetFile : pendingResumeInfoDeletes) {
+                    db.delete(TBL_RESUME_INFO, COL_TARGET_FILE + "==?", new String[]{targetFile});
+                }
+                for (String targetFile : pendingRangeDeletes) {
+                    db.delete(TBL_FILE_RANGES, COL_TARGET_FILE + "==?", new String[]{targetFile});
+                }
+                return true;
+            });
 
-            if (cursor.moveToFirst()) {
-                item = readItem(cursor);
+            // Only now is there a row for markTaskAsComplete() to delete.
+            for (DownloadTask task : pendingResumeInfo.values()) {
+                task.resumeInfoStored = true;
             }
 
+            pendingCompletions.clear();
+            pendingResumeInfo.clear();
+            pendingRanges.clear();
+            pendingResumeInfoDeletes.clear();
+            pendingRangeDeletes.clear();
+            synchronized (pendingItemUpdates) {
+                pendingItemUpdates.clear();
+                flushCount++;
+            }
         } finally {
-            safeClose(cursor);
+            traceEnd(DbTrace.Op.FLUSH, traceStart);
         }
+    }
 
-        return item;
+    // One counter update per item and track, for all tasks completed since the last flush.
+    private static void updateCompletionCounters(SQLiteDatabase db, List<DownloadTask> completed) {
+        final Map<String, Map<String, long[]>> byItem = new HashMap<>();   // itemId -> trackId -> {count, bytes}
+        for (DownloadTask task : completed) {
+            Map<String, long[]> byTrack = byItem.get(task.itemId);
+            if (byTrack == null) {
+                byTrack = new HashMap<>();
+                byItem.put(task.itemId, byTrack);
+            }
+            long[] counts = byTrack.get(task.trackRelativeId);
+            if (counts == null) {
+                counts = new long[2];
+                byTrack.put(task.trackRelativeId, counts);
+            }
+            counts[0]++;
+            counts[1] += task.targetFile.length();
+        }
+        for (Map.Entry<String, Map<String, long[]>> item : byItem.entrySet()) {
+            for (Map.Entry<String, long[]> track : item.getValue().entrySet()) {
+                final long[] counts = track.getValue();
+                addToCounters(db, item.getKey(), track.getKey(), 0, (int) -counts[0], counts[1]);
+            }
+        }
     }
 
-    synchronized void addItemToDB(final DownloadItemImp item, final File itemDataDir) {
-        trace("addItemToDB", item.getItemId());
+    synchronized @Nullable DownloadItemImp findItemInDB(String itemId) {
+        flushPendingWrites();
+
+        final long traceStart = traceBegin(DbTrace.Op.FIND_ITEM);
+        try {
+            Cursor cursor = null;
+            DownloadItemImp item = null;
+
+            try {
+                cursor = database.query(TBL_ITEMS,
+                        ALL_ITEM_COLS,
+                        COL_ITEM_ID + "==?", new String[]{itemId}, null, null, null);
+
+                if (cursor.moveToFirst()) {
+                    item = readItem(cursor);
+                }
 
-        doTransaction(db -> {
-            ContentValues values = new ContentValues(5);
-            values.put(COL_ITEM_ID, item.getItemId());
-            values.put(COL_CONTENT_URL, item.getContentURL());
-            values.put(COL_ITEM_ADD_TIME, item.getAddedTime());
-            values.put(COL_ITEM_STATE, item.getState().name());
-            values.put(COL_ITEM_DATA_DIR, itemDataDir.getAbsolutePath());
-            values.put(COL_ITEM_PLAYBACK_PATH, item.getPlaybackPath());
-            values.put(COL_ITEM_DURATION, item.getDurationMS());
-            db.insert(TBL_ITEMS, null, values);
-            return true;
-        });
+            } finally {
+                safeClose(cursor);
+            }
+
+            return item;
+        } finally {
+            traceEnd(DbTrace.Op.FIND_ITEM, traceStart);
+        }
     }
 
-    synchronized void removeItemFromDB(final String itemId) {
+    // Item data dirs are taken from item.getDataDir().
+    synchronized void addItemsToDB(final List<DownloadItemImp> items) {
+        flushPendingWrites();
 
-        trace("removeItemFromDB", itemId);
+        final long traceStart = traceBegin(DbTrace.Op.ADD_ITEMS);
+        try {
+            traceRows = items.size();
+            doTransaction(db -> {
+                ContentValues values = new ContentValues(7);
+                for (DownloadItemImp item : items) {
+                    values.put(COL_ITEM_ID, item.getItemId());
+                    values.put(COL_CONTENT_URL, item.getContentURL());
+                    values.put(COL_ITEM_ADD_TIME, item.getAddedTime());
+                    values.put(COL_ITEM_STATE, item.getState().name());
+                    values.put(COL_ITEM_DATA_DIR, item.getDataDir());
+                    values.put(COL_ITEM_PLAYBACK_PATH, item.getPlaybackPath());
+                    values.put(COL_ITEM_DURATION, item.getDurationMS());
+                    db.insert(TBL_ITEMS, null, values);
+                }
+                return true;
+            });
+        } finally {
+            traceEnd(DbTrace.Op.ADD_ITEMS, traceStart);
+        }
+    }
 
-        doTransaction(db -> {
-            db.delete(TBL_ITEMS, COL_ITEM_ID + "=?", new String[]{itemId});
+    synchronized void removeItemFromDB(final String itemId) {
+        flushPendingWrites();
 
-            // There's an "on delete cascade" between TBL_ITEMS and TBL_DOWNLOAD_FILES,
-            // but it wasn't active in the previous schema.
-            db.delete(TBL_DOWNLOAD_FILES, COL_ITEM_ID + "=?", new String[]{itemId});
-            return true;
-        });
+        final long traceStart = traceBegin(DbTrace.Op.REMOVE_ITEM);
+        try {
+            doTransaction(db -> {
+                db.delete(TBL_ITEMS, COL_ITEM_ID + "=?", new String[]{itemId});
+
+                // There's an "on delete cascade" between TBL_ITEMS and TBL_DOWNLOAD_FILES,
+                // but it wasn't active in the previous schema.
+                db.delete(TBL_DOWNLOAD_FILES, COL_ITEM_ID + "=?", new String[]{itemId});
+                db.delete(TBL_RESUME_INFO, COL_ITEM_ID + "=?", new String[]{itemId});
+                db.delete(TBL_FILE_RANGES, COL_ITEM_ID + "=?", new String[]{itemId});
+                if (trackTaskStore != null) {
+                    trackTaskStore.removeItem(itemId);
+                }
+                return true;
+            });
+        } finally {
+            traceEnd(DbTrace.Op.REMOVE_ITEM, traceStart);
+        }
     }
 
     synchronized void setDownloadFinishTime(final String itemId) {
-        trace("setDownloadFinishTime", itemId);
+        flushPendingWrites();
 
-        doTransaction(db -> {
-            ContentValues values = new ContentValues();
-            values.put(COL_ITEM_FINISH_TIME, System.currentTimeMillis());
+        final long traceStart = traceBegin(DbTrace.Op.SET_FINISH_TIME);
+        try {
+            doTransaction(db -> {
+                ContentValues values = new ContentValues();
+                values.put(COL_ITEM_FINISH_TIME, System.currentTimeMillis());
 
-            int res = db.update(TBL_ITEMS, values, COL_ITEM_ID + "==?", new String[]{itemId});
+                int res = db.update(TBL_ITEMS, values, COL_ITEM_ID + "==?", new String[]{itemId});
 
-            return res > 0;
-        });
+                return res > 0;
+            });
+        } finally {
+            traceEnd(DbTrace.Op.SET_FINISH_TIME, traceStart);
+        }
     }
 
     // If itemId is null, sum all items.
@@ -417,33 +986,39 @@ class Database {
 
     // If itemId is null, sum all items.
     private synchronized long getItemColumnLong(@Nullable String itemId, @NonNull String col) {
-        trace("getItemColumnLong", itemId, col);
+        flushPendingWrites();
 
-        SQLiteDatabase db = database;
-        Cursor cursor = null;
+        final long traceStart = traceBegin(DbTrace.Op.GET_ITEM_COLUMN);
         try {
-            if (itemId != null) {
-                cursor = db.query(TBL_ITEMS, new String[]{col}, COL_ITEM_ID + "==?", new String[]{itemId}, null, null, null);
-            } else {
-                cursor = db.rawQuery("SELECT SUM(" + col + ") FROM " + TBL_ITEMS, null);
-            }
-            if (cursor.moveToFirst()) {
-                return cursor.getLong(0);
+            SQLiteDatabase db = database;
+            Cursor cursor = null;
+            try {
+                if (itemId != null) {
+                    cursor = db.query(TBL_ITEMS, new String[]{col}, COL_ITEM_ID + "==?", new String[]{itemId}, null, null, null);
+                } else {
+                    cursor = db.rawQuery("SELECT SUM(" + col + ") FROM " + TBL_ITEMS, null);
+                }
+                if (cursor.moveToFirst()) {
+                    return cursor.getLong(0);
+                }
+                return 0;
+            } finally {
+                safeClose(cursor);
             }
-            return 0;
         } finally {
-            safeClose(cursor);
+            traceEnd(DbTrace.Op.GET_ITEM_COLUMN, traceStart);
         }
     }
 
+    // Queued like markTaskAsComplete(). Later updates of the same item are merged.
     synchronized void updateItemInfo(final DownloadItemImp item, final String[] columns) {
         final String itemId = item.getItemId();
-        trace("updateItemInfo", itemId, columns);
+        final long traceStart = traceBegin(DbTrace.Op.UPDATE_ITEM);
+        try {
+            if (columns == null || columns.length == 0) {
+                throw new IllegalArgumentException("columns.length must be >0");
+            }
 
-        if (columns == null || columns.length == 0) {
-            throw new IllegalArgumentException("columns.length must be >0");
-        }
-        doTransaction(db -> {
             ContentValues values = new ContentValues(columns.length);
             for (String column : columns) {
                 switch (column) {
@@ -472,20 +1047,30 @@ class Database {
                     // invalid -- can't change those.
                     case COL_ITEM_ID:
                     case COL_CONTENT_URL:
-                        return false;   // fail the transaction
+                        Log.e(TAG, "Can't update " + column + "; columns=" + Arrays.toString(columns));
+                        return;
                 }
             }
             if (values.size() == 0) {
                 Log.e(TAG, "No values; columns=" + Arrays.toString(columns));
-                return false;
+                return;
+            }
+
+            synchronized (pendingItemUpdates) {
+                final ContentValues pending = pendingItemUpdates.get(itemId);
+                if (pending != null) {
+                    pending.putAll(values);
+                } else {
+                    pendingItemUpdates.put(itemId, values);
+                }
             }
-            db.update(TBL_ITEMS, values, COL_ITEM_ID + "==?", new String[]{itemId});
-            return true;
-        });
-        trace("updateItemInfo done", itemId, columns);
+            flushIfFull();
+        } finally {
+            traceEnd(DbTrace.Op.UPDATE_ITEM, traceStart);
+        }
     }
 
-    synchronized private DownloadItemImp readItem(Cursor cursor) {
+    private static DownloadItemImp readItem(Cursor cursor) {
 
         String[] columns = cursor.getColumnNames();
 
@@ -524,184 +1109,322 @@ class Database {
                 case COL_ITEM_DURATION:
                     item.setDurationMS(cursor.getLong(i));
                     break;
+                case COL_ITEM_TOTAL_FILES:
+                    item.totalFileCount = cursor.getInt(i);
+                    break;
+                case COL_ITEM_PENDING_FILES:
+                    item.pendingFileCount.set(cursor.getInt(i));
+                    break;
             }
         }
-        item.totalFileCount = countTotalFiles(itemId);
-        int countPendingFiles = countPendingFiles(itemId, null);
-        //Log.d(TAG, "readItem: itemId = " + itemId + " totalFileCount = " + item.totalFileCount + " countPendingFiles = " + countPendingFiles);
-        item.pendingFileCount.set(countPendingFiles);
 
         return item;
     }
 
     synchronized ArrayList<DownloadItemImp> readItemsFromDB(DownloadState[] states) {
-        trace("readItemsFromDB", (Object) states);
+        flushPendingWrites();
 
-        String[] stateNames = new String[states.length];
-        for (int i = 0; i < states.length; i++) {
-            stateNames[i] = states[i].name();
-        }
-        String placeholders = "(" + TextUtils.join(",", Collections.nCopies(stateNames.length, "?")) + ")";
+        final long traceStart = traceBegin(DbTrace.Op.READ_ITEMS);
+        try {
+            String[] stateNames = new String[states.length];
+            for (int i = 0; i < states.length; i++) {
+                stateNames[i] = states[i].name();
+            }
+            String placeholders = "(" + TextUtils.join(",", Collections.nCopies(stateNames.length, "?")) + ")";
 
-        ArrayList<DownloadItemImp> items = new ArrayList<>();
+            ArrayList<DownloadItemImp> items = new ArrayList<>();
 
-        Cursor cursor = null;
+            Cursor cursor = null;
 
-        try {
-            cursor = database.query(TBL_ITEMS,
-                    ALL_ITEM_COLS,
-                    COL_ITEM_STATE + " IN " + placeholders, stateNames, null, null, null);
+            try {
+                cursor = database.query(TBL_ITEMS,
+                        ALL_ITEM_COLS,
+                        COL_ITEM_STATE + " IN " + placeholders, stateNames, null, null, null);
 
-            while (cursor.moveToNext()) {
-                DownloadItemImp item = readItem(cursor);
-                items.add(item);
+                while (cursor.moveToNext()) {
+                    DownloadItemImp item = readItem(cursor);
+                    items.add(item);
+                }
+            } finally {
+                safeClose(cursor);
             }
+
+
+            traceRows = items.size();
+            return items;
         } finally {
-            safeClose(cursor);
+            traceEnd(DbTrace.Op.READ_ITEMS, traceStart);
         }
+    }
 
+    /**
+     * Read items without locking the Database or flushing the write-behind queue, so the caller
+     * never waits for writers: with WAL, SQLite runs the query on a separate read-only connection.
+     * Queued item updates are applied to the rows that were read; if a flush commits while reading,
+     * the read is repeated. File counters may be behind until the next flush.
+     *
+     * @param itemId a single item, or null for all items.
+     * @param states only items in these states, or null for any state.
+     */
+    ArrayList<DownloadItemImp> readItemsConcurrently(@Nullable String itemId, @Nullable DownloadState[] states) {
+        final long traceStart = trace != null ? trace.begin(DbTrace.Op.READ_ITEMS_CONCURRENTLY) : 0;
+        ArrayList<DownloadItemImp> items;
+        while (true) {
+            final int flushCountBefore;
+            final Map<String, ContentValues> pending = new HashMap<>();
+            synchronized (pendingItemUpdates) {
+                flushCountBefore = flushCount;
+                for (Map.Entry<String, ContentValues> entry : pendingItemUpdates.entrySet()) {
+                    pending.put(entry.getKey(), new ContentValues(entry.getValue()));
+                }
+            }
 
+            items = queryItems(itemId, states, pending);
+
+            if (flushCount == flushCountBefore) {
+                break;
+            }
+        }
+        if (trace != null) {
+            trace.end(DbTrace.Op.READ_ITEMS_CONCURRENTLY, traceStart, items.size());
+        }
         return items;
     }
 
-    synchronized int countTotalFiles(@NonNull String itemId) {
-        String sql = "SELECT COUNT(*) FROM " + TBL_DOWNLOAD_FILES +
-                " WHERE " + COL_ITEM_ID + " == ? " +
-                " GROUP BY " + COL_ITEM_ID;
+    private ArrayList<DownloadItemImp> queryItems(@Nullable String itemId, @Nullable DownloadState[] states, Map<String, ContentValues> pending) {
+        final List<String> args = new ArrayList<>();
+        final StringBuilder selection = new StringBuilder();
+        if (itemId != null) {
+            selection.append(COL_ITEM_ID).append("==?");
+            args.add(itemId);
+        } else if (states != null) {
+            // The state of an item may be changed by a queued update
+            final List<String> or = new ArrayList<>();
+            for (DownloadState state : states) {
+                args.add(state.name());
+                or.add("?");
+            }
+            selection.append(COL_ITEM_STATE).append(" IN (").append(TextUtils.join(",", or)).append(")");
+            if (!pending.isEmpty()) {
+                or.clear();
+                for (String id : pending.keySet()) {
+                    args.add(id);
+                    or.add("?");
+                }
+                selection.append(" OR ").append(COL_ITEM_ID).append(" IN (").append(TextUtils.join(",", or)).append(")");
+            }
+        }
 
-        try (Cursor cursor = database.rawQuery(sql, new String[]{itemId})) {
-            if (cursor.moveToFirst()) {
-                return cursor.getInt(0);
+        final List<DownloadState> stateList = states != null ? Arrays.asList(states) : null;
+        final ArrayList<DownloadItemImp> items = new ArrayList<>();
+        try (Cursor cursor = database.query(TBL_ITEMS, ALL_ITEM_COLS,
+                selection.length() > 0 ? selection.toString() : null, args.toArray(new String[0]), null, null, null)) {
+
+            while (cursor.moveToNext()) {
+                final DownloadItemImp item = readItem(cursor);
+                final ContentValues values = pending.get(item.getItemId());
+                if (values != null) {
+                    applyItemValues(item, values);
+                }
+                if (stateList == null || stateList.contains(item.getState())) {
+                    items.add(item);
+                }
             }
-            return 0;
         }
+        return items;
     }
 
-    synchronized int countPendingFiles(String itemId, @Nullable String trackId) {
-
-        trace("countPendingFiles", itemId, trackId);
+    // Apply values queued by updateItemInfo().
+    private static void applyItemValues(DownloadItemImp item, ContentValues values) {
+        for (String column : values.keySet()) {
+            switch (column) {
+                case COL_ITEM_ADD_TIME:
+                    item.setAddedTime(values.getAsLong(column));
+                    break;
+                case COL_ITEM_STATE:
+                    item.setState(DownloadState.valueOf(values.getAsString(column)));
+                    break;
+                case COL_ITEM_ESTIMATED_SIZE:
+                    item.setEstimatedSizeBytes(values.getAsLong(column));
+                    break;
+                case COL_ITEM_DOWNLOADED_SIZE:
+                    item.setDownloadedSizeBytes(values.getAsLong(column));
+                    break;
+                case COL_ITEM_PLAYBACK_PATH:
+                    item.setPlaybackPath(values.getAsString(column));
+                    break;
+                case COL_ITEM_DATA_DIR:
+                    item.setDataDir(values.getAsString(column));
+                    break;
+                case COL_ITEM_DURATION:
+                    item.setDurationMS(values.getAsLong(column));
+                    break;
+            }
+        }
+    }
 
-        SQLiteDatabase db = database;
-        Cursor cursor = null;
-        int count = 0;
+    synchronized int countTotalFiles(@NonNull String itemId) {
+        return (int) getItemColumnLong(itemId, COL_ITEM_TOTAL_FILES);
+    }
 
+    synchronized int countPendingFiles(String itemId, @Nullable String trackId) {
+        final long traceStart = traceBegin(DbTrace.Op.COUNT_PENDING_FILES);
         try {
-            if (trackId != null) {
-                String sql = "SELECT COUNT(*) FROM " + TBL_DOWNLOAD_FILES +
-                        " WHERE " + COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0 AND " + COL_TRACK_REL_ID + "==?";
-                cursor = db.rawQuery(sql, new String[]{itemId, trackId});
-
-            } else {
-                String sql = "SELECT COUNT(*) FROM " + TBL_DOWNLOAD_FILES +
-                        " WHERE " + COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0";
-                cursor = db.rawQuery(sql, new String[]{itemId});
+            if (trackTaskStore != null) {
+                // Up to date in memory, even before the next flush.
+                return trackTaskStore.countPending(itemId, trackId);
             }
 
-            if (cursor.moveToFirst()) {
-                count = cursor.getInt(0);
+            flushPendingWrites();
+
+            if (trackId == null) {
+                return (int) getItemColumnLong(itemId, COL_ITEM_PENDING_FILES);
             }
 
+            try (Cursor cursor = database.query(TBL_TRACK, new String[]{COL_TRACK_PENDING_FILES},
+                    COL_ITEM_ID + "==? AND " + COL_TRACK_REL_ID + "==?", strings(itemId, trackId), null, null, null)) {
+                return cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            }
         } finally {
-            safeClose(cursor);
+            traceEnd(DbTrace.Op.COUNT_PENDING_FILES, traceStart);
         }
+    }
 
-        return count;
+    // Add to the file counters of an item and one of its tracks. Call in the transaction that changed the tasks.
+    private static void addToCounters(SQLiteDatabase db, String itemId, @Nullable String trackId, int total, int pending, long bytes) {
+        db.execSQL(Utils.format("UPDATE %s SET %s=%s+?, %s=%s+? WHERE %s==?", TBL_ITEMS,
+                COL_ITEM_TOTAL_FILES, COL_ITEM_TOTAL_FILES, COL_ITEM_PENDING_FILES, COL_ITEM_PENDING_FILES, COL_ITEM_ID),
+                new Object[]{total, pending, itemId});
+        if (trackId != null) {
+            db.execSQL(Utils.format("UPDATE %s SET %s=%s+?, %s=%s+?, %s=%s+? WHERE %s==? AND %s==?", TBL_TRACK,
+                    COL_TRACK_TOTAL_FILES, COL_TRACK_TOTAL_FILES, COL_TRACK_PENDING_FILES, COL_TRACK_PENDING_FILES,
+                    COL_TRACK_DOWNLOADED_BYTES, COL_TRACK_DOWNLOADED_BYTES, COL_ITEM_ID, COL_TRACK_REL_ID),
+                    new Object[]{total, pending, bytes, itemId, trackId});
+        }
     }
 
     synchronized void addTracks(final DownloadItemImp item, final List<BaseTrack> availableTracks, final List<BaseTrack> selectedTracks) {
-        trace("addTracks", item.getItemId(), availableTracks.size(), selectedTracks.size());
-
-        doTransaction(db -> {
-
-            for (BaseTrack track : availableTracks) {
-                ContentValues values = track.toContentValues();
-                values.put(COL_ITEM_ID, item.getItemId());
-                values.put(COL_TRACK_STATE, BaseTrack.TrackState.NOT_SELECTED.name());
-                try {
-                    db.insertOrThrow(TBL_TRACK, null, values);
-                } catch (SQLiteConstraintException e) {
-                    if (!Thread.currentThread().isInterrupted()) {
-                        Log.w(TAG, "Insert failed", e);
-                        Log.w(TAG, "execute: itemId=" + item.getItemId() + " rel=" + track.getRelativeId());
-                    } else {
-                        //Log.d(TAG, "Thread Interrupted in Database addTracks");
+        flushPendingWrites();
+
+        final long traceStart = traceBegin(DbTrace.Op.ADD_TRACKS);
+        try {
+            doTransaction(db -> {
+
+                for (BaseTrack track : availableTracks) {
+                    ContentValues values = track.toContentValues();
+                    values.put(COL_ITEM_ID, item.getItemId());
+                    values.put(COL_TRACK_STATE, BaseTrack.TrackState.NOT_SELECTED.name());
+                    try {
+                        db.insertOrThrow(TBL_TRACK, null, values);
+                    } catch (SQLiteConstraintException e) {
+                        if (!Thread.currentThread().isInterrupted()) {
+                            Log.w(TAG, "Insert failed", e);
+                            Log.w(TAG, "execute: itemId=" + item.getItemId() + " rel=" + track.getRelativeId());
+                        } else {
+                            //Log.d(TAG, "Thread Interrupted in Database addTracks");
+                        }
                     }
                 }
-            }
 
-            for (BaseTrack track : selectedTracks) {
-                ContentValues values = new ContentValues();
-                values.put(COL_TRACK_STATE, BaseTrack.TrackState.SELECTED.name());
-                db.update(TBL_TRACK, values, COL_ITEM_ID + "=? AND " + COL_TRACK_REL_ID + "=?",
-                        strings(item.getItemId(), track.getRelativeId()));
-            }
+                for (BaseTrack track : selectedTracks) {
+                    ContentValues values = new ContentValues();
+                    values.put(COL_TRACK_STATE, BaseTrack.TrackState.SELECTED.name());
+                    db.update(TBL_TRACK, values, COL_ITEM_ID + "=? AND " + COL_TRACK_REL_ID + "=?",
+                            strings(item.getItemId(), track.getRelativeId()));
+                }
 
-            return true;
-        });
+                return true;
+            });
+        } finally {
+            traceEnd(DbTrace.Op.ADD_TRACKS, traceStart);
+        }
     }
 
     synchronized List<BaseTrack> readTracks(String itemId, DownloadItem.TrackType type, @Nullable BaseTrack.TrackState state, AssetFormat assetFormat) {
-        trace("readTracks", itemId, type, state, assetFormat);
+        flushPendingWrites();
 
-        Cursor cursor = null;
-        List<BaseTrack> tracks = new ArrayList<>(10);
+        final long traceStart = traceBegin(DbTrace.Op.READ_TRACKS);
         try {
-            List<String> selectionCols = new ArrayList<>();
-            List<String> selectionArgs = new ArrayList<>();
-
-            selectionCols.add(COL_ITEM_ID);
-            selectionArgs.add(itemId);
-
-            if (type != null) {
-                selectionCols.add(COL_TRACK_TYPE);
-                selectionArgs.add(type.name());
-            }
+            Cursor cursor = null;
+            List<BaseTrack> tracks = new ArrayList<>(10);
+            try {
+                List<String> selectionCols = new ArrayList<>();
+                List<String> selectionArgs = new ArrayList<>();
+
+                selectionCols.add(COL_ITEM_ID);
+                selectionArgs.add(itemId);
+
+                if (type != null) {
+                    selectionCols.add(COL_TRACK_TYPE);
+                    selectionArgs.add(type.name());
+                }
 
-            if (state != null) {
-                selectionCols.add(COL_TRACK_STATE);
-                selectionArgs.add(state.name());
-            }
+                if (state != null) {
+                    selectionCols.add(COL_TRACK_STATE);
+                    selectionArgs.add(state.name());
+                }
 
-            String selection = TextUtils.join("=? AND ", selectionCols) + "=?";
-            String[] selectionArgsArray = selectionArgs.toArray(new String[0]);
-            cursor = database.query(TBL_TRACK,
-                    BaseTrack.REQUIRED_DB_FIELDS,
-                    selection,
-                    selectionArgsArray,
-                    null, null, COL_TRACK_ID + " ASC");
+                String selection = TextUtils.join("=? AND ", selectionCols) + "=?";
+                String[] selectionArgsArray = selectionArgs.toArray(new String[0]);
+                cursor = database.query(TBL_TRACK,
+                        BaseTrack.REQUIRED_DB_FIELDS,
+                        selection,
+                        selectionArgsArray,
+                        null, null, COL_TRACK_ID + " ASC");
+
+                while (cursor.moveToNext()) {
+                    BaseTrack track = BaseTrack.create(cursor, assetFormat);
+                    tracks.add(track);
+                }
 
-            while (cursor.moveToNext()) {
-                BaseTrack track = BaseTrack.create(cursor, assetFormat);
-                tracks.add(track);
+            } finally {
+                safeClose(cursor);
             }
 
+            traceRows = tracks.size();
+            return tracks;
         } finally {
-            safeClose(cursor);
+            traceEnd(DbTrace.Op.READ_TRACKS, traceStart);
         }
-
-        return tracks;
     }
 
     synchronized void updateTracksState(final String itemId, final List<BaseTrack> tracks, final BaseTrack.TrackState newState) {
-        trace("updateTracksState", itemId, tracks.size(), newState);
+        flushPendingWrites();
 
-        doTransaction(db -> {
-
-            ContentValues values = new ContentValues();
-            values.put(COL_TRACK_STATE, newState.name());
-
-            for (BaseTrack track : tracks) {
-                final String whereClause = COL_ITEM_ID + "=? AND " + COL_TRACK_REL_ID + "=?";
-                final String[] whereArgs = strings(itemId, track.getRelativeId());
-                db.update(TBL_TRACK, values, whereClause, whereArgs);
+        final long traceStart = traceBegin(DbTrace.Op.UPDATE_TRACKS);
+        try {
+            traceRows = tracks.size();
+            doTransaction(db -> {
 
-                if (newState == BaseTrack.TrackState.NOT_SELECTED) {
-                    db.delete(TBL_DOWNLOAD_FILES, whereClause, whereArgs);
+                ContentValues values = new ContentValues();
+                values.put(COL_TRACK_STATE, newState.name());
+
+                for (BaseTrack track : tracks) {
+                    final String whereClause = COL_ITEM_ID + "=? AND " + COL_TRACK_REL_ID + "=?";
+                    final String[] whereArgs = strings(itemId, track.getRelativeId());
+                    db.update(TBL_TRACK, values, whereClause, whereArgs);
+
+                    if (newState == BaseTrack.TrackState.NOT_SELECTED) {
+                        // The track's tasks are removed; take them off the item counters.
+                        try (Cursor cursor = db.query(TBL_TRACK, new String[]{COL_TRACK_TOTAL_FILES, COL_TRACK_PENDING_FILES},
+                                whereClause, whereArgs, null, null, null)) {
+                            if (cursor.moveToFirst()) {
+                                addToCounters(db, itemId, track.getRelativeId(), -cursor.getInt(0), -cursor.getInt(1), 0);
+                            }
+                        }
+                        if (trackTaskStore != null) {
+                            trackTaskStore.removeTrack(itemId, track.getRelativeId());
+                        } else {
+                            db.delete(TBL_DOWNLOAD_FILES, whereClause, whereArgs);
+                        }
+                    }
                 }
-            }
 
-            return true;
-        });
+                return true;
+            });
+        } finally {
+            traceEnd(DbTrace.Op.UPDATE_TRACKS, traceStart);
+        }
     }
 
     interface Transaction {
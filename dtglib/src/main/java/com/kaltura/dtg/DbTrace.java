@@ -0,0 +1,229 @@
+package com.kaltura.dtg;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.kaltura.dtg.exoparser.util.TraceUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Structured tracing of database operations. Enabled by setting {@link ContentManager.Settings#dbTraceSink};
+ * when it's null the database doesn't measure anything.
+ * When enabled, every operation is reported to the sink and recorded in a per-operation latency
+ * histogram (see {@link ContentManager.Metrics#dbLatency}).
+ */
+public final class DbTrace {
+
+    private static final String TAG = "DbTrace";
+
+    // Bucket i counts operations that took less than 2^i microseconds. The last one is open-ended.
+    static final int BUCKETS = 25;
+
+    // Traced operations. The names are used in histograms and sinks.
+    enum Op {
+        ADD_TASKS("addDownloadTasksToDB"),
+        READ_PENDING_TASKS("readPendingDownloadTasksFromDB"),
+        MARK_TASK_COMPLETE("markTaskAsComplete"),
+        SAVE_RESUME_INFO("saveResumeInfo"),
+        SAVE_RANGES("saveFileRanges"),
+        FLUSH("flushPendingWrites"),
+        FIND_ITEM("findItemInDB"),
+        ADD_ITEMS("addItemsToDB"),
+        REMOVE_ITEM("removeItemFromDB"),
+        SET_FINISH_TIME("setDownloadFinishTime"),
+        GET_ITEM_COLUMN("getItemColumnLong"),
+        UPDATE_ITEM("updateItemInfo"),
+        READ_ITEMS("readItemsFromDB"),
+        READ_ITEMS_CONCURRENTLY("readItemsConcurrently"),
+        COUNT_PENDING_FILES("countPendingFiles"),
+        ADD_TRACKS("addTracks"),
+        READ_TRACKS("readTracks"),
+        UPDATE_TRACKS("updateTracksState"),
+        MIGRATE_TASKS("migrateTaskStorage");
+
+        final String traceName;
+
+        Op(String traceName) {
+            this.traceName = traceName;
+        }
+    }
+
+    private final Sink sink;
+    private final long[][] buckets = new long[Op.values().length][BUCKETS];
+    private final long[] totalNanos = new long[Op.values().length];
+    private final long[] maxNanos = new long[Op.values().length];
+
+    DbTrace(@NonNull Sink sink) {
+        this.sink = sink;
+    }
+
+    long begin(Op op) {
+        sink.onBegin(op.traceName);
+        return System.nanoTime();
+    }
+
+    void end(Op op, long startNanos, int rows) {
+        final long durationNanos = System.nanoTime() - startNanos;
+        record(op, durationNanos);
+        sink.onEnd(op.traceName, durationNanos, rows, Thread.currentThread());
+    }
+
+    private synchronized void record(Op op, long durationNanos) {
+        final int i = op.ordinal();
+        final long micros = durationNanos / 1000;
+        final int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets[i][bucket]++;
+        totalNanos[i] += durationNanos;
+        maxNanos[i] = Math.max(maxNanos[i], durationNanos);
+    }
+
+    synchronized Map<String, Histogram> getHistograms() {
+        final Map<String, Histogram> histograms = new LinkedHashMap<>();
+        for (Op op : Op.values()) {
+            final int i = op.ordinal();
+            long count = 0;
+            for (long n : buckets[i]) {
+                count += n;
+            }
+            if (count > 0) {
+                histograms.put(op.traceName, new Histogram(count, totalNanos[i], maxNanos[i], buckets[i].clone()));
+            }
+        }
+        return histograms;
+    }
+
+    /**
+     * Receives database operations. Called on the thread that performed the operation, with the
+     * database locked, so implementations must be quick.
+     */
+    public interface Sink {
+        default void onBegin(String operation) {}
+
+        void onEnd(String operation, long durationNanos, int rows, Thread thread);
+    }
+
+    /**
+     * Latency histogram of one operation.
+     */
+    public static class Histogram {
+        public final long count;
+        public final long totalNanos;
+        public final long maxNanos;
+        public final long[] buckets;   // buckets[i]: operations that took less than 2^i microseconds
+
+        Histogram(long count, long totalNanos, long maxNanos, long[] buckets) {
+            this.count = count;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        /**
+         * @param fraction 0..1, e.g. 0.99
+         * @return upper bound of the bucket containing the given fraction of operations, in microseconds.
+         */
+        public long percentileMicros(double fraction) {
+            final long target = (long) Math.ceil(count * fraction);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return maxNanos / 1000;
+        }
+    }
+
+    /**
+     * Keeps the last operations in memory.
+     */
+    public static class RingBufferSink implements Sink {
+        private final String[] operations;
+        private final long[] durations;
+        private final int[] rows;
+        private final String[] threads;
+        private int next;
+        private int size;
+
+        public RingBufferSink(int capacity) {
+            operations = new String[capacity];
+            durations = new long[capacity];
+            rows = new int[capacity];
+            threads = new String[capacity];
+        }
+
+        @Override
+        public synchronized void onEnd(String operation, long durationNanos, int rowCount, Thread thread) {
+            operations[next] = operation;
+            durations[next] = durationNanos;
+            rows[next] = rowCount;
+            threads[next] = thread.getName();
+            next = (next + 1) % operations.length;
+            size = Math.min(size + 1, operations.length);
+        }
+
+        /**
+         * @return the recorded operations, oldest first, as "operation durationMicros rows thread".
+         */
+        public synchronized List<String> getEvents() {
+            final List<String> events = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                final int j = (next - size + i + operations.length) % operations.length;
+                events.add(operations[j] + " " + durations[j] / 1000 + " " + rows[j] + " " + threads[j]);
+            }
+            return Collections.unmodifiableList(events);
+        }
+    }
+
+    /**
+     * Appends one line per operation to a file: "timeMillis operation durationMicros rows thread".
+     */
+    public static class FileSink implements Sink {
+        private final BufferedWriter writer;
+
+        public FileSink(File file) throws IOException {
+            writer = new BufferedWriter(new FileWriter(file, true));
+        }
+
+        @Override
+        public synchronized void onEnd(String operation, long durationNanos, int rowCount, Thread thread) {
+            try {
+                writer.append(String.valueOf(System.currentTimeMillis())).append(' ')
+                        .append(operation).append(' ')
+                        .append(String.valueOf(durationNanos / 1000)).append(' ')
+                        .append(String.valueOf(rowCount)).append(' ')
+                        .append(thread.getName());
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to write trace", e);
+            }
+        }
+    }
+
+    /**
+     * Wraps every operation in an Android trace section (systrace / Perfetto).
+     */
+    public static class SystraceSink implements Sink {
+        @Override
+        public void onBegin(String operation) {
+            TraceUtil.beginSection(operation);
+        }
+
+        @Override
+        public void onEnd(String operation, long durationNanos, int rows, Thread thread) {
+            TraceUtil.endSection();
+        }
+    }
+}
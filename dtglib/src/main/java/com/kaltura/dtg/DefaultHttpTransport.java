@@ -0,0 +1,111 @@
+package com.kaltura.dtg;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * {@link HttpTransport} backed by the platform's {@link HttpURLConnection}.
+ * <p>
+ * The platform keeps a connection alive for reuse when its body was read to the end and it was
+ * not disconnected. Its pool is configured only through the process-wide http.keepAlive,
+ * http.maxConnections and http.keepAliveDuration system properties, which it reads once, when the
+ * first request is made. So {@link #configureKeepAlive(ContentManager.Settings)} is best-effort:
+ * it has no effect if the app (or another library) made an HTTP request before the service
+ * started, and it leaves alone properties that are already set. The platform doesn't report
+ * whether a request reused a connection; use {@link OkHttpTransport} for a pool of its own with
+ * reuse counts.
+ */
+public class DefaultHttpTransport implements HttpTransport {
+
+    static void configureKeepAlive(ContentManager.Settings settings) {
+        setPropertyIfUnset("http.keepAlive", "true");
+        setPropertyIfUnset("http.maxConnections", String.valueOf(settings.httpMaxIdleConnections));
+        setPropertyIfUnset("http.keepAliveDuration", String.valueOf(settings.httpKeepAliveMillis));
+    }
+
+    private static void setPropertyIfUnset(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    @NonNull
+    @Override
+    public Connection open(@NonNull Uri uri, @NonNull String method, @Nullable Map<String, String> headers, int timeoutMillis) throws IOException {
+        final HttpURLConnection conn = Utils.openConnection(uri);
+        try {
+            conn.setRequestMethod(method);
+            if (timeoutMillis > 0) {
+                conn.setReadTimeout(timeoutMillis);
+                conn.setConnectTimeout(timeoutMillis);
+            }
+            if (headers != null && !headers.isEmpty()) {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    conn.setRequestProperty(entry.getKey(), entry.getValue());
+                }
+            }
+            conn.connect();
+        } catch (IOException | RuntimeException e) {
+            Utils.releaseConnection(conn, false);
+            throw e;
+        }
+        return new UrlConnection(conn);
+    }
+
+    private static class UrlConnection implements Connection {
+        private final HttpURLConnection conn;
+
+        private UrlConnection(HttpURLConnection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public URL getURL() {
+            return conn.getURL();
+        }
+
+        @Override
+        public int getResponseCode() throws IOException {
+            return conn.getResponseCode();
+        }
+
+        @Nullable
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            // getContentLength() is an int; don't truncate large files.
+            final String contentLength = conn.getHeaderField("Content-Length");
+            if (TextUtils.isEmpty(contentLength)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return conn.getInputStream();
+        }
+
+        @Override
+        public void release(boolean reusable) {
+            Utils.releaseConnection(conn, reusable);
+        }
+    }
+}
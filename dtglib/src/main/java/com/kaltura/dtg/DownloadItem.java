@@ -31,6 +31,25 @@ public interface DownloadItem {
 
     long getAddedTime();
 
+    // The priority methods have default implementations so that existing implementations and
+    // mocks of this interface still compile; the library's items override them.
+
+    /**
+     * Items with a higher priority get workers first; items of equal priority share them.
+     * The default is 0. Not persisted.
+     */
+    default void setPriority(int priority) {}
+
+    default int getPriority() {
+        return 0;
+    }
+
+    /**
+     * Raise the priority above all other items, so this item finishes first.
+     * Doesn't start the download; call {@link #startDownload()} if needed.
+     */
+    default void downloadNext() {}
+
     TrackSelector getTrackSelector();
 
     AssetFormat getAssetFormat();
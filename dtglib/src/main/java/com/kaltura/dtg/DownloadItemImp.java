@@ -154,6 +154,21 @@ public class DownloadItemImp implements DownloadItem {
         service.pauseDownload(this);
     }
 
+    @Override
+    public void setPriority(int priority) {
+        service.setItemPriority(itemId, priority);
+    }
+
+    @Override
+    public int getPriority() {
+        return service.getItemPriority(itemId);
+    }
+
+    @Override
+    public void downloadNext() {
+        service.promoteItem(itemId);
+    }
+
     @Override
     public long getAddedTime() {
         return addedTime;
@@ -0,0 +1,256 @@
+package com.kaltura.dtg;
+
+import android.net.Uri;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadPoolExecutor;
+
+// Holds download tasks per item and per host, and hands them to the executor only when a worker
+// is free and the task's host is below its in-flight limit.
+// The next task is taken from the item with the highest priority; items of equal priority are
+// served round-robin, one task at a time. Within an item, hosts are served round-robin too, so a
+// slow host can't take over all workers while other hosts have work waiting.
+class DownloadScheduler {
+
+    private final ThreadPoolExecutor executor;
+    private final int maxInFlightPerHost; // 0: no limit
+
+    private final Map<String, Item> items = new LinkedHashMap<>();
+    private final Map<String, Host> hosts = new HashMap<>();    // only a handful per session; never removed
+    private final Map<String, Integer> priorities = new HashMap<>();
+    private int inFlight;
+    private long servedCounter;
+    private int holds;  // see hold()
+
+    DownloadScheduler(ThreadPoolExecutor executor, int maxInFlightPerHost) {
+        this.executor = executor;
+        this.maxInFlightPerHost = maxInFlightPerHost;
+    }
+
+    private static String hostOf(Uri url) {
+        final String authority = url != null ? url.getAuthority() : null;
+        return authority != null ? authority : "";
+    }
+
+    synchronized void enqueue(String itemId, DownloadTask task, FutureTask<Void> future) {
+        enqueue(itemId, hostOf(task.url), future);
+    }
+
+    synchronized void enqueue(String itemId, String hostName, FutureTask<Void> future) {
+        Host host = hosts.get(hostName);
+        if (host == null) {
+            host = new Host(hostName);
+            hosts.put(hostName, host);
+        }
+
+        Item item = items.get(itemId);
+        if (item == null) {
+            item = new Item(itemId);
+            items.put(itemId, item);
+        }
+        item.add(host, future);
+
+        dispatch();
+    }
+
+    synchronized void setPriority(String itemId, int priority) {
+        priorities.put(itemId, priority);
+        dispatch();
+    }
+
+    synchronized int getPriority(String itemId) {
+        final Integer priority = priorities.get(itemId);
+        return priority != null ? priority : 0;
+    }
+
+    // Move the item ahead of all others.
+    synchronized void promote(String itemId) {
+        int max = 0;
+        for (Map.Entry<String, Integer> entry : priorities.entrySet()) {
+            if (!entry.getKey().equals(itemId)) {
+                max = Math.max(max, entry.getValue());
+            }
+        }
+        if (getPriority(itemId) <= max) {
+            setPriority(itemId, max + 1);
+        }
+    }
+
+    // Don't submit tasks until release(), so that the tasks of several items are enqueued before
+    // the first one is picked. Calls can be nested.
+    synchronized void hold() {
+        holds++;
+    }
+
+    synchronized void release() {
+        holds--;
+        dispatch();
+    }
+
+    synchronized void removeItem(String itemId) {
+        priorities.remove(itemId);
+    }
+
+    // Submit as many queued tasks as the limits allow. Also called when the pool size changes.
+    synchronized void dispatch() {
+        if (executor.isShutdown() || holds > 0) {
+            return;
+        }
+        while (inFlight < executor.getMaximumPoolSize()) {
+            final Item item = nextItem();
+            if (item == null) {
+                break;
+            }
+            final Host host = item.nextHost(maxInFlightPerHost);
+            final FutureTask<Void> future = item.take(host);
+            item.lastServed = ++servedCounter;
+            if (!future.isCancelled()) {
+                submit(item, host, future);
+            } else if (item.isIdle()) {
+                items.remove(item.id);
+            }
+        }
+    }
+
+    // The highest priority item that has a runnable task; the least recently served on ties.
+    private Item nextItem() {
+        Item best = null;
+        int bestPriority = 0;
+        for (Item item : items.values()) {
+            if (item.nextHost(maxInFlightPerHost) == null) {
+                continue;
+            }
+            final int priority = getPriority(item.id);
+            if (best == null || priority > bestPriority || (priority == bestPriority && item.lastServed < best.lastServed)) {
+                best = item;
+                bestPriority = priority;
+            }
+        }
+        return best;
+    }
+
+    private void submit(final Item item, final Host host, final FutureTask<Void> future) {
+        item.inFlight++;
+        host.inFlight++;
+        inFlight++;
+        executor.execute(() -> {
+            try {
+                future.run();
+            } finally {
+                onFinished(item, host);
+            }
+        });
+    }
+
+    private synchronized void onFinished(Item item, Host host) {
+        item.inFlight--;
+        host.inFlight--;
+        inFlight--;
+        if (item.isIdle()) {
+            items.remove(item.id);
+        }
+        dispatch();
+    }
+
+    // Drop cancelled tasks that haven't started yet.
+    synchronized void purge() {
+        for (Iterator<Item> it = items.values().iterator(); it.hasNext(); ) {
+            final Item item = it.next();
+            item.purge();
+            if (item.isIdle()) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized Map<String, ContentManager.Metrics.HostLoad> getHostLoad() {
+        final Map<String, ContentManager.Metrics.HostLoad> load = new HashMap<>();
+        for (Host host : hosts.values()) {
+            if (host.queued == 0 && host.inFlight == 0) {
+                continue;
+            }
+            final ContentManager.Metrics.HostLoad hostLoad = new ContentManager.Metrics.HostLoad();
+            hostLoad.queued = host.queued;
+            hostLoad.inFlight = host.inFlight;
+            load.put(host.name, hostLoad);
+        }
+        return load;
+    }
+
+    private static class Host {
+        final String name;
+        int queued;
+        int inFlight;
+
+        Host(String name) {
+            this.name = name;
+        }
+
+        boolean isFull(int maxInFlight) {
+            return maxInFlight > 0 && inFlight >= maxInFlight;
+        }
+    }
+
+    private static class Item {
+        final String id;
+        // The tasks of each host keep their original order. A host moves to the end when it's
+        // served, so the first non-full host is the least recently served one.
+        final Map<Host, ArrayDeque<FutureTask<Void>>> queues = new LinkedHashMap<>();
+        int queued;
+        int inFlight;
+        long lastServed;
+
+        Item(String id) {
+            this.id = id;
+        }
+
+        boolean isIdle() {
+            return queued == 0 && inFlight == 0;
+        }
+
+        void add(Host host, FutureTask<Void> future) {
+            ArrayDeque<FutureTask<Void>> queue = queues.get(host);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                queues.put(host, queue);
+            }
+            queue.add(future);
+            queued++;
+            host.queued++;
+        }
+
+        Host nextHost(int maxInFlightPerHost) {
+            for (Map.Entry<Host, ArrayDeque<FutureTask<Void>>> entry : queues.entrySet()) {
+                if (!entry.getValue().isEmpty() && !entry.getKey().isFull(maxInFlightPerHost)) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+
+        FutureTask<Void> take(Host host) {
+            queued--;
+            host.queued--;
+            final ArrayDeque<FutureTask<Void>> queue = queues.remove(host);
+            queues.put(host, queue);
+            return queue.poll();
+        }
+
+        void purge() {
+            for (Map.Entry<Host, ArrayDeque<FutureTask<Void>>> entry : queues.entrySet()) {
+                for (Iterator<FutureTask<Void>> it = entry.getValue().iterator(); it.hasNext(); ) {
+                    if (it.next().isCancelled()) {
+                        it.remove();
+                        queued--;
+                        entry.getKey().queued--;
+                    }
+                }
+            }
+        }
+    }
+}
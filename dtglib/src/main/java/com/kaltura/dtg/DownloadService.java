@@ -18,24 +18,28 @@ import com.kaltura.dtg.DownloadItem.TrackType;
 import java.io.File;
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.net.HttpRetryException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-
-import static android.os.SystemClock.elapsedRealtime;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 
 public class DownloadService extends Service {
@@ -49,8 +53,14 @@ public class DownloadService extends Service {
     private boolean stopping;
     private DownloadStateListener downloadStateListener;
     private PausableThreadPoolExecutor executorService;
+    private DownloadScheduler scheduler;
+    private ConcurrencyController concurrencyController;
+    private BandwidthMeter bandwidthMeter;
+    private BandwidthThrottle bandwidthThrottle;
     private ThreadPoolExecutor metaDataDownloadExecutorService;
+    private ThreadPoolExecutor queryExecutorService;   // async API calls, see submitQuery()
     private final ItemFutureMap futureMap = new ItemFutureMap();
+    private final ConcurrentHashMap<String, TaskFeeder> feeders = new ConcurrentHashMap<>();
     private Handler listenerHandler = null;
     private ConcurrentHashMap<String, DownloadTask.State> firedEventStateMap = new ConcurrentHashMap<>();
     private ConcurrentHashMap<String, MetaDataFutureMap> metaDataDownloadMap = new ConcurrentHashMap<>();
@@ -61,6 +71,22 @@ public class DownloadService extends Service {
     private final Set<String> removedItems = new HashSet<>();
 
     private ItemCache itemCache = new ItemCache();
+    private final AtomicLongArray retryCounters = new AtomicLongArray(DownloadTask.RetryCause.values().length);
+    private final Random retryRandom = new Random();
+    private List<ResumeSnapshot.Entry> resumeSnapshot;  // read by start(), used by resumeFromSnapshot()
+
+    // Queued in the db's write-behind from the progress thread, so the download thread doesn't wait
+    // for the db lock. The task's completion is posted after it, so it's queued after it too.
+    private final DownloadTask.ResumeInfoListener resumeInfoListener = task -> {
+        if (taskProgressHandler.getLooper().getThread().isAlive()) {
+            taskProgressHandler.post(() -> {
+                final Database database = this.database;
+                if (database != null) {
+                    database.saveResumeInfo(task);
+                }
+            });
+        }
+    };
 
     private final DownloadTask.Listener mDownloadTaskListener = (task, newState, newBytes, stopError) -> {
         if (taskProgressHandler.getLooper().getThread().isAlive()) {
@@ -134,9 +160,30 @@ public class DownloadService extends Service {
             return;
         }
 
+        if (concurrencyController != null) {
+            if (newState == DownloadTask.State.COMPLETED) {
+                concurrencyController.onTaskCompleted();
+            } else if (newState == DownloadTask.State.ERROR) {
+                concurrencyController.onTaskError();
+            }
+        }
+
+        if (task.rangedDownload != null && newBytes > 0) {
+            database.saveFileRanges(task.rangedDownload);
+        }
+
         int pendingCount = -1;
         if (newState == DownloadTask.State.COMPLETED) {
-            database.markTaskAsComplete(task);
+            // A range worker completes the file only when all ranges are done.
+            final DownloadTask file = task.rangedDownload != null ? task.rangedDownload.file : task;
+            if (file != task && !task.rangedDownload.complete()) {
+                return;
+            }
+            final TaskFeeder feeder = feeders.get(itemId);
+            if (feeder != null) {
+                feeder.onTaskCompleted(file);
+            }
+            database.markTaskAsComplete(file);
             if (item.pendingFileCount.get() == 0) {
                 Log.e(TAG, "onTaskProgress Pending tasks for item: countPendingFiles(itemId, null) == 0");
                 item.pendingFileCount.set(countPendingFiles(itemId, null));
@@ -148,6 +195,12 @@ public class DownloadService extends Service {
         }
 
         if (newState == DownloadTask.State.ERROR) {
+            final TaskFeeder feeder = feeders.get(itemId);
+            if (feeder != null && feeder.park(task, stopError, item.totalFileCount)) {
+                Log.d(TAG, "Task has failed; will retry later. Item " + itemId + " offending URL: " + task.url);
+                listenerHandler.post(() -> downloadStateListener.onSegmentFailure(item, task.url.toString(), stopError));
+                return;
+            }
             Log.d(TAG, "Task has failed; cancelling item " + itemId + " offending URL: " + task.url);
             if (!checkEventIsfired(itemId, newState)) {
                 cancelItemWithError(item, stopError);
@@ -156,7 +209,7 @@ public class DownloadService extends Service {
         }
 
         final long totalBytes = item.incDownloadBytes(newBytes);
-        itemCache.markDirty(itemId);
+        itemCache.markDirty(item);
 
         if (pendingCount == 0) {
             // We finished the last (or only) chunk of the item.
@@ -200,6 +253,7 @@ public class DownloadService extends Service {
     private void cancelItemWithError(@NonNull final DownloadItemImp item, final Exception stopError) {
         itemCache.updateItemState(item, DownloadState.FAILED);
 
+        stopFeeding(item.getItemId());
         futureMap.cancelItem(item.getItemId());
         listenerHandler.post(() -> downloadStateListener.onDownloadFailure(item, stopError));
     }
@@ -232,9 +286,6 @@ public class DownloadService extends Service {
         listenerThread = new HandlerThread("DownloadTaskListener");
         listenerThread.start();
         taskProgressHandler = new Handler(listenerThread.getLooper());
-
-
-        itemCache.scheduleCacheManager(taskProgressHandler);
     }
 
     private void stopHandlerThreads() {
@@ -245,36 +296,50 @@ public class DownloadService extends Service {
     }
 
     private void pauseItemDownload(String itemId) {
+        stopFeeding(itemId);
         if (itemId != null) {
             executorService.pause();
             futureMap.cancelItem(itemId);
+            scheduler.purge();
             executorService.resume();
         } else {
             executorService.pause();
             futureMap.cancelAll();
+            scheduler.purge();
             executorService.resume();
         }
         // Maybe add PAUSE_ALL with executorService.purge(); and remove futures
     }
 
-    private void downloadChunks(ArrayList<DownloadTask> chunks, String itemId) {
+    private void downloadChunks(List<DownloadTask> chunks, String itemId, TaskFeeder feeder) {
         if (chunks == null) {
             return;
         }
         for (DownloadTask task : chunks) {
             task.itemId = itemId;
-            FutureTask<Void> future = futureTask(itemId, task);
-            executorService.execute(future);
+            FutureTask<Void> future = futureTask(itemId, task, feeder);
             futureMap.add(itemId, future);
+            scheduler.enqueue(itemId, task, future);
+        }
+    }
+
+    private void stopFeeding(@Nullable String itemId) {
+        if (itemId != null) {
+            final TaskFeeder feeder = feeders.remove(itemId);
+            if (feeder != null) {
+                feeder.stop();
+            }
+        } else {
+            for (Iterator<TaskFeeder> it = feeders.values().iterator(); it.hasNext(); ) {
+                it.next().stop();
+                it.remove();
+            }
         }
     }
 
     private void updateItemInfoInDB(DownloadItemImp item, String... columns) {
-        if (item != null) {
+        if (item != null && database != null) {
             itemCache.updateItemInfo(item, columns);
-            if (database != null) {
-                database.updateItemInfo(item, columns);
-            }
         }
     }
 
@@ -299,15 +364,80 @@ public class DownloadService extends Service {
 
         File dbFile = new File(Storage.getDataDir(), "downloads.db");
 
-        database = new Database(dbFile, context);
+        database = new Database(dbFile, context, settings.compactTaskStorage, settings.dbTraceSink);
+        database.setGroupCommitMaxRows(settings.dbGroupCommitMaxRows);
+
+        // Always read (and delete): a snapshot that isn't used now is stale after this session.
+        resumeSnapshot = ResumeSnapshot.read(getResumeSnapshotFile(), getResumeSnapshotConfig());
+
+        BufferPool.setup(settings);
+        if (settings.httpTransport == null) {
+            DefaultHttpTransport.configureKeepAlive(settings);
+        }
+        Utils.setHttpTransport(settings.httpTransport);
 
         startHandlerThreads();
+        scheduleGroupCommit();
 
         executorService = new PausableThreadPoolExecutor(settings.maxConcurrentDownloads);
+        scheduler = new DownloadScheduler(executorService, settings.maxConcurrentDownloadsPerHost);
+
+        bandwidthMeter = new BandwidthMeter();
+        bandwidthThrottle = new BandwidthThrottle(settings.maxBandwidthBytesPerSecond);
+
+        queryExecutorService = new ThreadPoolExecutor(2, 2,
+                30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>());
+        queryExecutorService.allowCoreThreadTimeOut(true);
+
+        if (settings.adaptiveConcurrencyEnabled) {
+            startConcurrencyController();
+        }
 
         started = true;
     }
 
+    // Periodically write the completions and item updates queued in the db.
+    private void scheduleGroupCommit() {
+        taskProgressHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                final Database db = database;
+                if (taskProgressHandler == null || db == null) {
+                    // Service stopped.
+                    return;
+                }
+                db.flushPendingWrites();
+                taskProgressHandler.postDelayed(this, settings.dbGroupCommitIntervalMs);
+            }
+        }, settings.dbGroupCommitIntervalMs);
+    }
+
+    private void startConcurrencyController() {
+        concurrencyController = new ConcurrencyController(settings.maxConcurrentDownloads,
+                settings.minAdaptiveConcurrentDownloads, settings.maxAdaptiveConcurrentDownloads, bandwidthMeter, workers -> {
+            executorService.setPoolSize(workers);
+            scheduler.dispatch();
+            final ContentManager.MetricsListener metricsListener = settings.metricsListener;
+            if (metricsListener != null) {
+                listenerHandler.post(() -> metricsListener.onConcurrencyChanged(workers));
+            }
+        });
+        executorService.setPoolSize(concurrencyController.getWorkers());
+
+        taskProgressHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (taskProgressHandler == null || concurrencyController == null) {
+                    // Service stopped.
+                    return;
+                }
+                concurrencyController.evaluate();
+                taskProgressHandler.postDelayed(this, ConcurrencyController.EVALUATION_INTERVAL_MS);
+            }
+        }, ConcurrencyController.EVALUATION_INTERVAL_MS);
+    }
+
     void stop() {
 
         Log.d(TAG, "stop()");
@@ -332,6 +462,7 @@ public class DownloadService extends Service {
 
         metaDataDownloadMap.clear();
 
+        concurrencyController = null;
         executorService.shutdownNow();
         try {
             executorService.awaitTermination(10, TimeUnit.SECONDS);
@@ -339,6 +470,15 @@ public class DownloadService extends Service {
             Log.e(TAG, "stop: awaitTerminationInterrupted", e);
         }
         stopHandlerThreads();
+        itemCache.flush();
+        writeResumeSnapshot();
+
+        queryExecutorService.shutdownNow();
+        try {
+            queryExecutorService.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "stop: awaitTerminationInterrupted", e);
+        }
 
         // close db
         database.close();
@@ -348,6 +488,86 @@ public class DownloadService extends Service {
         stopping = false;
     }
 
+    private File getResumeSnapshotFile() {
+        return new File(Storage.getDataDir(), "resume.snapshot");
+    }
+
+    private String getResumeSnapshotConfig() {
+        return Database.DB_VERSION + "/" + settings.compactTaskStorage;
+    }
+
+    // Save the items in progress and their first pending tasks, for resumeFromSnapshot() on the next start.
+    private void writeResumeSnapshot() {
+        final int window = Math.max(1, settings.maxQueuedTasksPerItem);
+        final List<ResumeSnapshot.Entry> entries = new ArrayList<>();
+        for (DownloadItemImp item : database.readItemsFromDB(new DownloadState[]{DownloadState.IN_PROGRESS})) {
+            entries.add(new ResumeSnapshot.Entry(item,
+                    database.readPendingDownloadTasksFromDB(item.getItemId(), Integer.MIN_VALUE, -1, window)));
+        }
+        ResumeSnapshot.write(getResumeSnapshotFile(), getResumeSnapshotConfig(), entries);
+    }
+
+    /**
+     * Resume the items that were in progress when the service was last stopped, queuing the tasks
+     * saved in the snapshot without reading the db. The items are checked against the db later.
+     *
+     * @return false if there's no snapshot; the items should then be resumed from the db.
+     */
+    boolean resumeFromSnapshot() {
+        assertStarted();
+
+        final List<ResumeSnapshot.Entry> entries = resumeSnapshot;
+        resumeSnapshot = null;
+        if (entries == null || Storage.isLowDiskSpace(settings.freeDiskSpaceRequiredBytes)) {
+            return false;
+        }
+
+        scheduler.hold();
+        try {
+            for (ResumeSnapshot.Entry entry : entries) {
+                final DownloadItemImp item = itemCache.add(entry.item);
+                if (entry.tasks.isEmpty()) {
+                    // Finished just before stopping; let startDownload() complete it.
+                    startDownload(item);
+                    continue;
+                }
+
+                removeItemFromEventStateMap(item.getItemId());
+                listenerHandler.post(() -> downloadStateListener.onDownloadStart(item));
+
+                final TaskFeeder feeder = new TaskFeeder(item.getItemId(), Math.max(1, settings.maxQueuedTasksPerItem));
+                final TaskFeeder previous = feeders.put(item.getItemId(), feeder);
+                if (previous != null) {
+                    previous.stop();
+                }
+                feeder.seed(entry.tasks);
+            }
+        } finally {
+            scheduler.release();
+        }
+
+        taskProgressHandler.post(() -> reconcileSnapshot(entries));
+        return true;
+    }
+
+    // The db can't change while the service is stopped, so this is only a safety net: stop items
+    // that the db doesn't have in progress.
+    private void reconcileSnapshot(List<ResumeSnapshot.Entry> entries) {
+        final Database db = database;
+        if (db == null) {
+            return;
+        }
+        for (ResumeSnapshot.Entry entry : entries) {
+            final String itemId = entry.item.getItemId();
+            final DownloadItemImp dbItem = db.findItemInDB(itemId);
+            if (dbItem == null || dbItem.getState() != DownloadState.IN_PROGRESS) {
+                Log.w(TAG, "reconcileSnapshot: item " + itemId + " isn't in progress in the db; stopping it");
+                pauseItemDownload(itemId);
+                itemCache.forget(itemId);
+            }
+        }
+    }
+
     void loadItemMetadata(final DownloadItemImp item) {
 
         assertStarted();
@@ -492,11 +712,18 @@ public class DownloadService extends Service {
             headers = downloadRequestParams != null ? downloadRequestParams.headers : null;
         }
 
-        long length = Utils.httpHeadGetLength(url, headers);
+        final Utils.HeadResponse head = Utils.httpHead(url, headers);
+        long length = head.length;
 
         String fileNameFullPath = Utils.getHashedFileName(url.getPath());
         File targetFile = new File(item.getDataDir(), fileNameFullPath);
         DownloadTask downloadTask = new DownloadTask(url, targetFile, 1);
+        downloadTask.itemId = item.getItemId();
+
+        // Large files are downloaded in parallel ranges; see TaskFeeder.enqueue().
+        if (settings.rangedDownloadConnections > 1 && head.acceptsRanges && length >= Math.max(settings.rangedDownloadConnections, settings.rangedDownloadMinBytes)) {
+            downloadTask.rangedDownload = RangedDownload.split(downloadTask, length, settings.rangedDownloadConnections);
+        }
 
         item.setEstimatedSizeBytes(length);
         item.setPlaybackPath(fileNameFullPath);
@@ -515,13 +742,21 @@ public class DownloadService extends Service {
         database.addTracks(item, availableTracks, selectedTracks);
     }
 
-    DownloadState startDownload(@NonNull final DownloadItemImp item) {
-        assertStarted();
-
+    private void assertCanStart(@NonNull DownloadItemImp item) {
         if (removedItems.contains(item.getItemId())) {
             throw new IllegalStateException("Can't start download on deleted item");
         }
 
+        if (item.getState() == DownloadState.NEW) {
+            throw new IllegalStateException("Can't start download while itemState == NEW");
+        }
+    }
+
+    DownloadState startDownload(@NonNull final DownloadItemImp item) {
+        assertStarted();
+
+        assertCanStart(item);
+
         removeItemFromEventStateMap(item.getItemId());
 
         if (Storage.isLowDiskSpace(settings.freeDiskSpaceRequiredBytes)) {
@@ -529,42 +764,61 @@ public class DownloadService extends Service {
             return DownloadState.FAILED;
         }
 
-        // Refresh item state
-
-        if (item.getState() == DownloadState.NEW) {
-            throw new IllegalStateException("Can't start download while itemState == NEW");
-        }
-
         itemCache.updateItemState(item, DownloadState.IN_PROGRESS);
 
         listenerHandler.post(() -> downloadStateListener.onDownloadStart(item));
 
-        // Read download tasks from db
-        ArrayList<DownloadTask> chunksToDownload = database.readPendingDownloadTasksFromDB(item.getItemId());
+        // Feed download tasks from db, a window at a time
+        final TaskFeeder feeder = new TaskFeeder(item.getItemId(), Math.max(1, settings.maxQueuedTasksPerItem));
+        final TaskFeeder previous = feeders.put(item.getItemId(), feeder);
+        if (previous != null) {
+            previous.stop();
+        }
 
-        if (chunksToDownload.isEmpty()) {
+        if (feeder.fill() == 0) {
+            feeders.remove(item.getItemId(), feeder);
             itemCache.updateItemState(item, DownloadState.COMPLETED);
 
             listenerHandler.post(() -> downloadStateListener.onDownloadComplete(item));
 
         } else {
-
-            if (chunksToDownload.get(0).order == DownloadTask.UNKNOWN_ORDER) {
-                // Shuffle to mix large and small files together, making download speed look smooth.
-                // Otherwise, all small files (subtitles, keys) are downloaded together. Because of
-                // http request overhead the download speed is very slow when downloading the small
-                // files and fast when downloading the large ones (video).
-                // This is not needed if the tasks are correctly ordered.
-                Collections.shuffle(chunksToDownload, new Random(42));
-            }
-
-            downloadChunks(chunksToDownload, item.getItemId());
             itemCache.updateItemState(item, DownloadState.IN_PROGRESS);
         }
 
         return item.getState();
     }
 
+    // Start several items with one db transaction. Their first tasks are queued before any of them
+    // is dispatched, so priorities apply from the start.
+    void startDownloads(@NonNull final List<DownloadItemImp> items) {
+        assertStarted();
+
+        for (DownloadItemImp item : items) {
+            assertCanStart(item);
+        }
+
+        scheduler.hold();
+        try {
+            database.runBatch(() -> {
+                for (DownloadItemImp item : items) {
+                    startDownload(item);
+                }
+            });
+        } finally {
+            scheduler.release();
+        }
+    }
+
+    void pauseDownloads(@NonNull final List<DownloadItemImp> items) {
+        assertStarted();
+
+        database.runBatch(() -> {
+            for (DownloadItemImp item : items) {
+                pauseDownload(item);
+            }
+        });
+    }
+
     void pauseDownload(final DownloadItemImp item) {
         assertStarted();
 
@@ -598,6 +852,27 @@ public class DownloadService extends Service {
             return;
         }
 
+        forgetItem(item);
+        deleteItemFiles(item.getItemId());
+    }
+
+    // Remove several items with one db transaction. The files are deleted after it's committed.
+    void removeItems(@NonNull final List<DownloadItemImp> items) {
+        assertStarted();
+
+        database.runBatch(() -> {
+            for (DownloadItemImp item : items) {
+                forgetItem(item);
+            }
+        });
+
+        for (DownloadItemImp item : items) {
+            deleteItemFiles(item.getItemId());
+        }
+    }
+
+    // Everything removeItem() does except deleting the files.
+    private void forgetItem(@NonNull DownloadItemImp item) {
         removeItemFromEventStateMap(item.getItemId());
 
         pauseDownload(item);
@@ -608,9 +883,10 @@ public class DownloadService extends Service {
         final String itemId = item.getItemId();
         removedItems.add(itemId);
 
-
-        deleteItemFiles(itemId);
         itemCache.remove(itemId);
+        bandwidthMeter.removeItem(itemId);
+        bandwidthThrottle.removeItem(itemId);
+        scheduler.removeItem(itemId);
     }
 
     private void deleteItemFiles(String itemId) {
@@ -641,6 +917,33 @@ public class DownloadService extends Service {
 
     DownloadItemImp createItem(String itemId, String contentURL) throws Utils.DirectoryNotCreatableException {
         assertStarted();
+
+        final DownloadItemImp item = newItem(itemId, contentURL);
+        if (item != null) {
+            database.addItemsToDB(Collections.singletonList(item));
+        }
+        return item;
+    }
+
+    // Create several items with one db transaction. Items that already exist are skipped.
+    List<DownloadItemImp> createItems(Map<String, String> contentURLs) throws Utils.DirectoryNotCreatableException {
+        assertStarted();
+
+        final List<DownloadItemImp> items = new ArrayList<>(contentURLs.size());
+        for (Map.Entry<String, String> entry : contentURLs.entrySet()) {
+            final DownloadItemImp item = newItem(entry.getKey(), entry.getValue());
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        if (!items.isEmpty()) {
+            database.addItemsToDB(items);
+        }
+        return items;
+    }
+
+    // A new item and its data dir, not yet in the db. Returns null if it can't be created.
+    private @Nullable DownloadItemImp newItem(String itemId, String contentURL) throws Utils.DirectoryNotCreatableException {
         // if this item was just removed, unmark it as removed.
         removedItems.remove(itemId);
 
@@ -666,8 +969,6 @@ public class DownloadService extends Service {
 
         item.setDataDir(itemDataDir.getAbsolutePath());
 
-        database.addItemToDB(item, itemDataDir);
-
         removeItemFromEventStateMap(item.getItemId());
 
         item.setService(this);
@@ -723,6 +1024,156 @@ public class DownloadService extends Service {
         return database.getEstimatedItemSize(itemId);
     }
 
+    /**
+     * Run a query or a mutation on the query executor.
+     *
+     * @param executor runs the listener; if null, the listener runs on the query thread.
+     * @param listener may be null
+     */
+    <T> Future<T> submitQuery(Callable<T> query, @Nullable final Executor executor, @Nullable final ContentManager.ResultListener<T> listener) {
+        assertStarted();
+
+        final FutureTask<T> future = new FutureTask<T>(query) {
+            @Override
+            protected void done() {
+                if (listener == null) {
+                    return;
+                }
+                T result = null;
+                Exception error = null;
+                try {
+                    result = get();
+                } catch (ExecutionException e) {
+                    error = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                } catch (CancellationException | InterruptedException e) {
+                    error = e;
+                }
+                final T finalResult = result;
+                final Exception finalError = error;
+                if (executor != null) {
+                    executor.execute(() -> listener.onResult(finalResult, finalError));
+                } else {
+                    listener.onResult(finalResult, finalError);
+                }
+            }
+        };
+        queryExecutorService.execute(future);
+        return future;
+    }
+
+    // The following read the db without waiting for writers; call them from submitQuery().
+
+    @Nullable DownloadItemImp findItemConcurrently(String itemId) {
+        final DownloadItemImp cached = itemCache.peek(itemId);
+        if (cached != null) {
+            return cached;
+        }
+        // Not added to the cache: its file counters may be behind the db.
+        final List<DownloadItemImp> items = database.readItemsConcurrently(itemId, null);
+        if (items.isEmpty()) {
+            return null;
+        }
+        final DownloadItemImp item = items.get(0);
+        item.setService(this);
+        return item;
+    }
+
+    List<DownloadItemImp> getDownloadsConcurrently(DownloadState[] states) {
+        final List<DownloadItemImp> items = database.readItemsConcurrently(null, states);
+        for (DownloadItemImp item : items) {
+            item.setService(this);
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    long getEstimatedItemSizeConcurrently(@Nullable String itemId) {
+        long size = 0;
+        for (DownloadItemImp item : database.readItemsConcurrently(itemId, null)) {
+            size += item.getEstimatedSizeBytes();
+        }
+        return size;
+    }
+
+    ContentManager.Metrics getMetrics() {
+        assertStarted();
+
+        final ContentManager.Metrics metrics = new ContentManager.Metrics();
+
+        final BufferPool bufferPool = BufferPool.shared();
+        metrics.bufferPoolHits = bufferPool.getHits();
+        metrics.bufferPoolMisses = bufferPool.getMisses();
+        metrics.bufferPoolBytesInUse = bufferPool.getTotalBytesAllocated();
+
+        final HttpTransport transport = Utils.getHttpTransport();
+        if (transport instanceof HttpTransport.ConnectionStats) {
+            final HttpTransport.ConnectionStats stats = (HttpTransport.ConnectionStats) transport;
+            metrics.connectionsOpened = stats.getConnectionsOpened();
+            metrics.connectionsReused = stats.getConnectionsReused();
+            final long requests = metrics.connectionsOpened + metrics.connectionsReused;
+            metrics.connectionReuseRatio = requests > 0 ? (float) metrics.connectionsReused / requests : 0;
+        }
+
+        metrics.concurrentDownloads = executorService.getMaximumPoolSize();
+        metrics.hostLoad = scheduler.getHostLoad();
+
+        metrics.currentThroughput = bandwidthMeter.getCurrentThroughput();
+        metrics.medianThroughput = bandwidthMeter.getMedianThroughput();
+
+        metrics.dbLatency = database.getTraceHistograms();
+        itemCache.fillMetrics(metrics);
+
+        metrics.retries = new HashMap<>();
+        for (DownloadTask.RetryCause cause : DownloadTask.RetryCause.values()) {
+            metrics.retries.put(cause.name(), retryCounters.get(cause.ordinal()));
+        }
+
+        return metrics;
+    }
+
+    void setBandwidthLimit(long bytesPerSecond) {
+        assertStarted();
+
+        bandwidthThrottle.setGlobalLimit(bytesPerSecond);
+    }
+
+    void setItemBandwidthLimit(@NonNull String itemId, long bytesPerSecond) {
+        assertStarted();
+
+        bandwidthThrottle.setItemLimit(itemId, bytesPerSecond);
+    }
+
+    void setItemPriority(@NonNull String itemId, int priority) {
+        assertStarted();
+
+        scheduler.setPriority(itemId, priority);
+    }
+
+    int getItemPriority(@NonNull String itemId) {
+        assertStarted();
+
+        return scheduler.getPriority(itemId);
+    }
+
+    void promoteItem(@NonNull String itemId) {
+        assertStarted();
+
+        scheduler.promote(itemId);
+    }
+
+    long getEstimatedTimeRemainingMs(String itemId) {
+        assertStarted();
+
+        final DownloadItemImp item = itemCache.get(itemId);
+        if (item == null) {
+            return -1;
+        }
+        if (item.getState() == DownloadState.COMPLETED) {
+            return 0;
+        }
+        final long remainingBytes = item.getEstimatedSizeBytes() - item.getDownloadedSizeBytes();
+        return bandwidthMeter.estimateTimeRemainingMs(itemId, remainingBytes);
+    }
+
     List<BaseTrack> readTracksFromDB(String itemId, TrackType trackType, BaseTrack.TrackState state, AssetFormat assetFormat) {
         return database.readTracks(itemId, trackType, state, assetFormat);
     }
@@ -735,27 +1186,33 @@ public class DownloadService extends Service {
         return database.countPendingFiles(itemId, track != null ? track.getRelativeId() : null);
     }
 
-    private FutureTask<Void> futureTask(final String itemId, final DownloadTask task) {
+    private FutureTask<Void> futureTask(final String itemId, final DownloadTask task, final TaskFeeder feeder) {
         task.setListener(mDownloadTaskListener);
+        task.setResumeInfoListener(resumeInfoListener);
         task.setDownloadSettings(settings);
+        task.setBandwidthMeter(bandwidthMeter);
+        task.setBandwidthThrottle(bandwidthThrottle);
+        final AtomicBoolean retrying = new AtomicBoolean();
         Callable<Void> callable = () -> {
-            while (true) {
-                try {
-                    if (Storage.isLowDiskSpace(settings.freeDiskSpaceRequiredBytes)) {
-                        final DownloadItemImp item = itemCache.get(itemId);
-                        if (item != null) {
-                            cancelItemWithError(item, new Utils.LowDiskSpaceException());
-                        }
-                        return null;
-                    }
+            if (Storage.isLowDiskSpace(settings.freeDiskSpaceRequiredBytes)) {
+                final DownloadItemImp item = itemCache.get(itemId);
+                if (item != null) {
+                    cancelItemWithError(item, new Utils.LowDiskSpaceException());
+                }
+                return null;
+            }
 
-                    task.download(settings.chunksUrlAdapter);
-                    break;
-                } catch (HttpRetryException e) {
-                    Log.d(TAG, "Task should be retried");
-                    Thread.sleep(2000);
-                    // continue
+            try {
+                task.download(settings.chunksUrlAdapter);
+            } catch (DownloadTask.RetryException e) {
+                Log.d(TAG, "Task should be retried: " + e.retryCause);
+                final ConcurrencyController controller = concurrencyController;
+                if (controller != null) {
+                    controller.onTaskError();
                 }
+                retryCounters.incrementAndGet(e.retryCause.ordinal());
+                retrying.set(true);
+                scheduleRetry(itemId, task, feeder, retryDelayMs(task.getRetryCount(), e.retryAfterMs));
             }
             return null;
         };
@@ -764,10 +1221,35 @@ public class DownloadService extends Service {
             @Override
             protected void done() {
                 futureMap.remove(itemId, this);
+                // Cancelled futures belong to a stopped feeder. Skipping them also keeps
+                // the cancelling thread (which holds the futureMap lock) off the feeder lock.
+                // A task that will be retried is still queued as far as the feeder is concerned.
+                if (!isCancelled() && !retrying.get()) {
+                    feeder.onTaskDone();
+                }
             }
         };
     }
 
+    // Exponential backoff with jitter: a random delay between half and all of
+    // retryBaseDelayMs * 2^(attempt-1). A Retry-After from the server makes it longer, but never
+    // more than maxRetryDelayMs: a server can't park a worker's task for an arbitrary time.
+    private long retryDelayMs(int attempt, long retryAfterMs) {
+        final long maxDelay = Math.max(settings.retryBaseDelayMs, settings.maxRetryDelayMs);
+        final long delay = Math.min(maxDelay, settings.retryBaseDelayMs << Math.min(Math.max(attempt - 1, 0), 20));
+        final long jittered = delay / 2 + (long) (retryRandom.nextDouble() * (delay - delay / 2));
+        return Math.min(maxDelay, Math.max(jittered, retryAfterMs));
+    }
+
+    // Enqueue the task again after the delay. The worker is free in the meantime.
+    private void scheduleRetry(final String itemId, final DownloadTask task, final TaskFeeder feeder, long delayMs) {
+        final Handler handler = taskProgressHandler;
+        if (handler == null) {
+            return;
+        }
+        handler.postDelayed(() -> feeder.retry(task), delayMs);
+    }
+
     void setSettings(ContentManager.Settings settings) {
         if (started) {
             throw new IllegalStateException("Can't change settings after start");
@@ -776,74 +1258,306 @@ public class DownloadService extends Service {
         this.settings = settings;
     }
 
+    // Enqueues the pending tasks of an item a window at a time, refilling as tasks finish, so the
+    // number of live tasks doesn't depend on the length of the item.
+    private class TaskFeeder {
+        private final String itemId;
+        private final int window;
+        private final Random random = new Random(42);
+        private int queued;     // enqueued and not done
+        private int lastOrder = Integer.MIN_VALUE;
+        private long lastFileId = -1;
+        private boolean exhausted;
+        private volatile boolean stopped;
+        private final List<DownloadTask> parked = new ArrayList<>();    // failed, to be retried; not counted in queued
+        private final Set<String> failedTaskIds = new HashSet<>();      // failed and not completed since
+        private int retryPasses;
+        private Exception lastError;
+
+        TaskFeeder(String itemId, int window) {
+            this.itemId = itemId;
+            this.window = window;
+        }
+
+        // Top up the window when it's half empty. Returns the number of tasks enqueued.
+        synchronized int fill() {
+            if (stopped || exhausted || database == null || queued > window / 2) {
+                return 0;
+            }
+
+            final int count = window - queued;
+            return enqueue(database.readPendingDownloadTasksFromDB(itemId, lastOrder, lastFileId, count), count);
+        }
+
+        // Start with the first page of pending tasks, read earlier.
+        synchronized int seed(List<DownloadTask> page) {
+            return enqueue(new ArrayList<>(page), window);
+        }
+
+        // page: pending tasks in db order, after the last enqueued one; count: the page size that was requested.
+        private int enqueue(List<DownloadTask> page, int count) {
+            if (page.size() < count) {
+                exhausted = true;
+            }
+            if (page.isEmpty()) {
+                return 0;
+            }
+
+            final DownloadTask last = page.get(page.size() - 1);
+            lastOrder = last.order;
+            lastFileId = last.fileId;
+
+            if (last.order == DownloadTask.UNKNOWN_ORDER) {
+                // Shuffle to mix large and small files together, making download speed look smooth.
+                // Otherwise, all small files (subtitles, keys) are downloaded together. Because of
+                // http request overhead the download speed is very slow when downloading the small
+                // files and fast when downloading the large ones (video).
+                // This is not needed if the tasks are correctly ordered.
+                Collections.shuffle(page, random);
+            }
+
+            final List<DownloadTask> tasks = new ArrayList<>(page.size());
+            for (DownloadTask task : page) {
+                if (task.rangedDownload != null) {
+                    // One file, several workers
+                    tasks.addAll(task.rangedDownload.newWorkers(Math.max(1, settings.rangedDownloadConnections)));
+                } else {
+                    tasks.add(task);
+                }
+            }
+
+            queued += tasks.size();
+            downloadChunks(tasks, itemId, this);
+            return page.size();
+        }
+
+        synchronized void onTaskDone() {
+            queued--;
+            fill();
+            retryParkedIfDrained();
+        }
+
+        // A task failed. Keep it aside, to retry once the other tasks are done, unless the item's failure
+        // budget is exceeded. Returns false if it's exceeded: the item should fail.
+        synchronized boolean park(DownloadTask task, Exception error, int totalFiles) {
+            failedTaskIds.add(task.taskId);
+            final int budget = Math.max(settings.maxFailedSegments, (int) (settings.maxFailedSegmentsPercent * totalFiles / 100));
+            if (failedTaskIds.size() > budget) {
+                return false;
+            }
+            parked.add(task);
+            lastError = error;
+            retryParkedIfDrained();
+            return true;
+        }
+
+        synchronized void onTaskCompleted(DownloadTask task) {
+            if (!failedTaskIds.isEmpty()) {
+                failedTaskIds.remove(task.taskId);
+            }
+        }
+
+        // When all other tasks are done, enqueue the parked ones again. After failedSegmentRetryPasses
+        // rounds, the item fails: it can't complete without them.
+        private void retryParkedIfDrained() {
+            if (stopped || !exhausted || queued > 0 || parked.isEmpty()) {
+                return;
+            }
+
+            if (retryPasses >= settings.failedSegmentRetryPasses) {
+                stopped = true;
+                final Exception error = lastError;
+                final Handler handler = taskProgressHandler;
+                if (handler != null) {
+                    handler.post(() -> {
+                        final DownloadItemImp item = itemCache.get(itemId);
+                        if (item != null && !checkEventIsfired(itemId, DownloadTask.State.ERROR)) {
+                            cancelItemWithError(item, error);
+                        }
+                    });
+                }
+                return;
+            }
+
+            retryPasses++;
+            final List<DownloadTask> tasks = new ArrayList<>(parked);
+            parked.clear();
+            for (DownloadTask task : tasks) {
+                task.resetRetryCount();
+            }
+            queued += tasks.size();
+            downloadChunks(tasks, itemId, this);
+        }
+
+        // Enqueue a task that failed and is still counted in queued.
+        synchronized void retry(DownloadTask task) {
+            if (stopped || stopping) {
+                return;
+            }
+            downloadChunks(Collections.singletonList(task), itemId, this);
+        }
+
+        void stop() {
+            stopped = true;
+        }
+    }
+
     class LocalBinder extends Binder {
         DownloadService getService() {
             return DownloadService.this;
         }
     }
 
+    // The items used by the service, up to settings.maxCachedItems; the least recently used are
+    // evicted first. onTaskProgress() updates the downloaded size in memory and marks the item dirty;
+    // dirty items are written to the db together, one interval after the first of them was marked,
+    // and are never evicted.
     private class ItemCache {
-        private Map<String, DownloadItemImp> cache = new ConcurrentHashMap<>();
-        private Set<String> dbFlushNeeded = Collections.newSetFromMap(new ConcurrentHashMap<>());
-        private Map<String, Long> itemLastUseTime = new ConcurrentHashMap<>();
+        private final LinkedHashMap<String, DownloadItemImp> cache = new LinkedHashMap<>(16, 0.75f, true);
+        private final Map<String, Long> dirty = new HashMap<>();    // itemId -> markCount when marked
+        private long markCount;
+        private long hits;
+        private long misses;
+        private long evictions;
+        private long flushedRows;
+
+        private final Runnable flushRunnable = this::flush;
+
+        // The db is never called with the cache locked: the db calls back into the cache in runBatch().
+
+        private void markDirty(DownloadItemImp item) {
+            final boolean first;
+            synchronized (this) {
+                if (!cache.containsKey(item.getItemId())) {
+                    // Evicted since it was read; the object has the newest progress.
+                    cache.put(item.getItemId(), item);
+                }
+                first = dirty.isEmpty();
+                dirty.put(item.getItemId(), ++markCount);
+            }
+            if (first) {
+                scheduleFlush();
+            }
+        }
 
-        private void markDirty(String itemId) {
-            dbFlushNeeded.add(itemId);
+        private void scheduleFlush() {
+            final Handler handler = taskProgressHandler;
+            if (handler != null) {
+                handler.postDelayed(flushRunnable, settings.dbGroupCommitIntervalMs);
+            }
         }
 
-        private void scheduleCacheManager(Handler handler) {
-            handler.post(new Runnable() {
-                @Override
-                public void run() {
+        // Write the downloaded size of dirty items. Items marked again while writing stay dirty.
+        private void flush() {
+            final Database db = database;
+            if (db == null) {
+                return;
+            }
 
-                    // Flush dirty items to db
-                    for (String itemId : dbFlushNeeded) {
-                        final DownloadItemImp item = cache.get(itemId);
-                        updateItemInfoInDB(item, Database.COL_ITEM_DOWNLOADED_SIZE);
+            final Map<String, Long> flushing;
+            final List<DownloadItemImp> items = new ArrayList<>();
+            synchronized (this) {
+                flushing = new HashMap<>(dirty);
+                for (String itemId : flushing.keySet()) {
+                    final DownloadItemImp item = cache.get(itemId);
+                    if (item != null) {
+                        items.add(item);
                     }
+                }
+            }
 
-                    // Remove unused items
-                    final Iterator<Map.Entry<String, Long>> iterator = itemLastUseTime.entrySet().iterator();
-                    while (iterator.hasNext()) {
-                        final Map.Entry<String, Long> entry = iterator.next();
-                        if (elapsedRealtime() - entry.getValue() > 60000) {
-                            final String itemId = entry.getKey();
-                            iterator.remove();
-                            cache.remove(itemId);
-                            dbFlushNeeded.remove(itemId);
-                        }
-                    }
+            for (DownloadItemImp item : items) {
+                db.updateItemInfo(item, new String[]{Database.COL_ITEM_DOWNLOADED_SIZE});
+            }
 
-                    if (taskProgressHandler != null) {
-                        // stop() is removing this handler - can cause a crash in certain cases.
-                        // If the handler was stopped, stop (don't re-post) the task.
-                        taskProgressHandler.postDelayed(this, 200);
+            final boolean reschedule;
+            synchronized (this) {
+                flushedRows += items.size();
+                for (Map.Entry<String, Long> entry : flushing.entrySet()) {
+                    if (entry.getValue().equals(dirty.get(entry.getKey()))) {
+                        dirty.remove(entry.getKey());
                     }
                 }
-            });
+                reschedule = !dirty.isEmpty();
+            }
+            if (reschedule) {
+                scheduleFlush();
+            }
         }
 
-        private @Nullable DownloadItemImp get(String itemId) {
-            DownloadItemImp item = cache.get(itemId);
-            if (item != null) {
-                itemLastUseTime.put(itemId, elapsedRealtime());
+        // Add an item that was read elsewhere, unless it's already cached. Returns the cached item.
+        private DownloadItemImp add(DownloadItemImp item) {
+            synchronized (this) {
+                final DownloadItemImp cached = cache.get(item.getItemId());
+                if (cached != null) {
+                    return cached;
+                }
+                item.setService(DownloadService.this);
+                cache.put(item.getItemId(), item);
+                evict();
                 return item;
             }
+        }
 
-            item = database.findItemInDB(itemId);
-            if (item != null) {
-                item.setService(DownloadService.this);
+        // Drop the item from memory only.
+        private synchronized void forget(String itemId) {
+            cache.remove(itemId);
+            dirty.remove(itemId);
+        }
+
+        // Without reading the db.
+        private synchronized @Nullable DownloadItemImp peek(String itemId) {
+            return cache.get(itemId);
+        }
+
+        private @Nullable DownloadItemImp get(String itemId) {
+            if (itemId == null) {
+                return null;
+            }
+
+            synchronized (this) {
+                final DownloadItemImp item = cache.get(itemId);
+                if (item != null) {
+                    hits++;
+                    return item;
+                }
+                misses++;
+            }
+
+            final DownloadItemImp item = database.findItemInDB(itemId);
+            if (item == null) {
+                return null;
+            }
+            item.setService(DownloadService.this);
+
+            synchronized (this) {
+                // Another thread may have loaded it meanwhile.
+                final DownloadItemImp cached = cache.get(itemId);
+                if (cached != null) {
+                    return cached;
+                }
                 cache.put(itemId, item);
-                itemLastUseTime.put(itemId, elapsedRealtime());
+                evict();
+                return item;
             }
+        }
 
-            return item;
+        private void evict() {
+            final int maxSize = Math.max(1, settings.maxCachedItems);
+            final Iterator<Map.Entry<String, DownloadItemImp>> iterator = cache.entrySet().iterator();
+            while (cache.size() > maxSize && iterator.hasNext()) {
+                if (!dirty.containsKey(iterator.next().getKey())) {
+                    iterator.remove();
+                    evictions++;
+                }
+            }
         }
 
         private void remove(String itemId) {
-            cache.remove(itemId);
-            itemLastUseTime.remove(itemId);
-            dbFlushNeeded.remove(itemId);
+            synchronized (this) {
+                cache.remove(itemId);
+                dirty.remove(itemId);
+            }
             database.removeItemFromDB(itemId);
         }
 
@@ -856,8 +1570,8 @@ public class DownloadService extends Service {
 
         private void updateItemInfo(DownloadItemImp item, String[] columns) {
             if (item != null) {
-                final DownloadItemImp cachedItem = cache.get(item.getItemId());
-                if (cachedItem != null) {
+                final DownloadItemImp cachedItem = peek(item.getItemId());
+                if (cachedItem != null && cachedItem != item) {
                     // Update cached item too
                     for (String column : columns) {
                         switch (column) {
@@ -879,5 +1593,12 @@ public class DownloadService extends Service {
                 database.updateItemInfo(item, columns);
             }
         }
+
+        private synchronized void fillMetrics(ContentManager.Metrics metrics) {
+            metrics.itemCacheHits = hits;
+            metrics.itemCacheMisses = misses;
+            metrics.itemCacheEvictions = evictions;
+            metrics.itemCacheFlushedRows = flushedRows;
+        }
     }
 }
@@ -11,6 +11,15 @@ public interface DownloadStateListener {
 
     void onDownloadFailure(DownloadItem item, Exception error);
 
+    /**
+     * A segment of the item failed to download and will be retried after the other segments.
+     * The item keeps downloading. If too many segments fail (see
+     * {@link ContentManager.Settings#maxFailedSegments}), {@link #onDownloadFailure} is called instead.
+     *
+     * @param url the segment URL
+     */
+    default void onSegmentFailure(DownloadItem item, String url, Exception error) {}
+
     void onDownloadMetadata(DownloadItem item, Exception error);
 
     void onTracksAvailable(DownloadItem item, DownloadItem.TrackSelector trackSelector);
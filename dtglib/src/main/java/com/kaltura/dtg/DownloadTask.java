@@ -1,26 +1,39 @@
 package com.kaltura.dtg;
 
 import android.net.Uri;
+import android.text.TextUtils;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.kaltura.dtg.exoparser.upstream.Allocation;
+
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpRetryException;
-import java.net.HttpURLConnection;
+import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class DownloadTask {
     public static final int UNKNOWN_ORDER = -1;
     private static final String TAG = "DownloadTask";
     private static final int PROGRESS_REPORT_COUNT = 100;
+    private static final ThreadLocal<ByteBuffer> nioBuffers = new ThreadLocal<>();
 
     final String taskId;
     final Uri url;
@@ -29,11 +42,19 @@ public class DownloadTask {
 
     String trackRelativeId;
     int order;
+    long fileId = -1;   // Files table key; set when read from the db
+    String validator;           // ETag or Last-Modified of the remote object, for If-Range
+    long expectedLength = -1;   // of the remote object
+    boolean resumeInfoStored;   // the db has a ResumeInfo row for this file
+    RangedDownload rangedDownload;  // if set, the file is downloaded by several range workers (that have it set too)
 
     private Listener listener;  // this is the service
+    private ResumeInfoListener resumeInfoListener;
 
     private int retryCount = 0;
     private ContentManager.Settings downloadSettings;
+    private BandwidthMeter bandwidthMeter;
+    private BandwidthThrottle bandwidthThrottle;
 
     public DownloadTask(Uri url, File targetFile, int order) {
         this.url = url;
@@ -66,7 +87,21 @@ public class DownloadTask {
         return false;
     }
 
-    void download(@Nullable DownloadRequestParams.Adapter chunksUrlAdapter) throws HttpRetryException {
+    int getRetryCount() {
+        return retryCount;
+    }
+
+    void resetRetryCount() {
+        retryCount = 0;
+    }
+
+    // Count a retry. Returns false if the task has used all of its retries.
+    private boolean shouldRetry() {
+        retryCount++;
+        return retryCount < downloadSettings.maxDownloadRetries;
+    }
+
+    void download(@Nullable DownloadRequestParams.Adapter chunksUrlAdapter) throws RetryException {
 
         Uri uri = this.url;
         Map<String,String> headers = null;
@@ -92,104 +127,156 @@ public class DownloadTask {
 
         long localFileSize = targetFile.length();
 
-        // If file is already downloaded, make sure it's not larger than the remote.
-        if (localFileSize > 0) {
-            try {
-                long remoteFileSize = Utils.httpHeadGetLength(uri, headers);
-
-                // finish before even starting, if file is already complete.
-                if (localFileSize == remoteFileSize) {
-                    // We're done.
-                    reportProgress(State.COMPLETED, 0, null);
-                    return;
-                } else if (localFileSize > remoteFileSize) {
-                    // This is really odd. Delete and try again.
-                    Log.w(TAG, "Target file is longer than remote. Deleting the target.");
-                    if (!targetFile.delete()) {
-                        Log.w(TAG, "Can't delete targetFile");
-                    }
-                    localFileSize = 0;
-                }
-
-            } catch (InterruptedIOException e) {
-                Log.d(TAG, "Task " + taskId + " interrupted (1)");
-                reportProgress(State.STOPPED, 0, null);
+        // If the remote length is known, the local file says on its own whether it's complete.
+        // A ranged file is preallocated, so its length says nothing.
+        if (localFileSize > 0 && expectedLength > 0 && rangedDownload == null) {
+            if (localFileSize == expectedLength) {
+                // We're done.
+                reportProgress(State.COMPLETED, 0, null);
                 return;
-            } catch (IOException e) {
-                Log.e(TAG, "HEAD request failed for " + uri, e);
-                // Nothing to do, but this is not fatal. Just continue.
+            } else if (localFileSize > expectedLength) {
+                // This is really odd. Delete and try again.
+                Log.w(TAG, "Target file is longer than remote. Deleting the target.");
+                if (!targetFile.delete()) {
+                    Log.w(TAG, "Can't delete targetFile");
+                }
+                localFileSize = 0;
             }
         }
 
-
-        // Start the actual download.
+        // Start the actual download. A partial file is resumed with a single ranged GET; see openResponse().
         InputStream inputStream = null;
-        HttpURLConnection conn = null;
+        HttpTransport.Connection conn = null;
         FileOutputStream fileOutputStream = null;
 
         State stopReason = null;
         Exception stopError = null;
 
+        Allocation allocation = null;
+
         boolean interruptedBetweenCycles = false;
 
         int progressReportBytes = 0;
 
 
         try {
-            conn = Utils.openConnection(uri);
-            conn.setReadTimeout(downloadSettings.httpTimeoutMillis);
-            conn.setConnectTimeout(downloadSettings.httpTimeoutMillis);
-            conn.setDoInput(true);
-            if (headers != null && !headers.isEmpty()) {
-                for (Map.Entry<String, String> entry : headers.entrySet()) {
-                    conn.setRequestProperty(entry.getKey(), entry.getValue());
+            if (rangedDownload != null) {
+                if (downloadRanges(uri, headers)) {
+                    stopReason = State.COMPLETED;
+                } else {
+                    reportProgress(State.STOPPED, 0, null);
                 }
+                return;
             }
-            if (localFileSize > 0) {
-                // Resume
-                conn.setRequestProperty("Range", "Bytes=" + localFileSize + "-");
+
+            conn = openResponse(uri, headers, localFileSize);
+            if (conn == null) {
+                // The local file is already complete.
+                stopReason = State.COMPLETED;
+                return;
             }
-            conn.connect();
 
-            int response = conn.getResponseCode();
-            if (response >= 400) {
-                throw new IOException(Utils.format("Response code for %s is %d", uri, response));
+            if (conn.getResponseCode() != 206) {
+                // Starting from the beginning, either because there's no partial file or because
+                // the remote object changed (or the server ignored the range).
+                if (localFileSize > 0) {
+                    Log.d(TAG, "Task " + taskId + ": can't resume, downloading the whole file");
+                }
+                localFileSize = 0;
             }
 
             inputStream = conn.getInputStream();
-            fileOutputStream = new FileOutputStream(targetFile, true);
-
-            byte[] buffer = new byte[10240]; // 10k buffer
+            fileOutputStream = new FileOutputStream(targetFile, localFileSize > 0);
 
             int byteCount;
             progressReportBytes = 0;
-            int progressReportCounter = 0;
 
-            while (true) {
-                if (Thread.interrupted()) {
-                    interruptedBetweenCycles = true;
-                    break;
-                }
+            final BandwidthMeter meter = this.bandwidthMeter;
+            final AtomicLong meterItemCounter = meter != null ? meter.itemCounter(itemId) : null;
 
-                byteCount = inputStream.read(buffer);
+            final BandwidthThrottle throttle = this.bandwidthThrottle;
+            final BandwidthThrottle.Bucket globalBucket = throttle != null ? throttle.globalBucket() : null;
+            final BandwidthThrottle.Bucket itemBucket = throttle != null ? throttle.itemBucket(itemId) : null;
 
-                progressReportCounter++;
+            if (downloadSettings.nioTransferEnabled) {
+                final ReadableByteChannel source = Channels.newChannel(inputStream);
+                final FileChannel target = fileOutputStream.getChannel();
+                final ByteBuffer buffer = nioBuffer(downloadSettings.nioTransferBufferSize);
 
-                if (byteCount < 0) {
-                    // EOF
-                    break;
-                }
+                while (true) {
+                    if (Thread.interrupted()) {
+                        interruptedBetweenCycles = true;
+                        break;
+                    }
+
+                    byteCount = source.read(buffer);
 
-                if (byteCount > 0) {
-                    fileOutputStream.write(buffer, 0, byteCount);
-                    progressReportBytes += byteCount;
+                    if (meter != null) {
+                        meter.onBytesTransferred(meterItemCounter, byteCount);
+                    }
+
+                    if (throttle != null && !waitForBandwidth(globalBucket, itemBucket, byteCount)) {
+                        interruptedBetweenCycles = true;
+                        break;
+                    }
+
+                    // Only write when the buffer is full (or at EOF), so every write moves a big block.
+                    if (byteCount < 0 || !buffer.hasRemaining()) {
+                        progressReportBytes += writeFully(buffer, target);
+                        if (progressReportBytes > 0) {
+                            reportProgress(State.IN_PROGRESS, progressReportBytes, null);
+                            progressReportBytes = 0;
+                        }
+                    }
+
+                    if (byteCount < 0) {
+                        // EOF
+                        break;
+                    }
                 }
 
-                if (progressReportBytes > 0 && progressReportCounter >= PROGRESS_REPORT_COUNT) {
+                // Keep what was already read if we were interrupted.
+                progressReportBytes += writeFully(buffer, target);
+
+            } else {
+                allocation = BufferPool.shared().allocate();
+                final byte[] buffer = allocation.data;
+
+                int progressReportCounter = 0;
+
+                while (true) {
+                    if (Thread.interrupted()) {
+                        interruptedBetweenCycles = true;
+                        break;
+                    }
+
+                    byteCount = inputStream.read(buffer);
+
+                    progressReportCounter++;
+
+                    if (byteCount < 0) {
+                        // EOF
+                        break;
+                    }
+
+                    if (byteCount > 0) {
+                        fileOutputStream.write(buffer, 0, byteCount);
+                        progressReportBytes += byteCount;
+                        if (meter != null) {
+                            meter.onBytesTransferred(meterItemCounter, byteCount);
+                        }
+                        if (throttle != null && !waitForBandwidth(globalBucket, itemBucket, byteCount)) {
+                            interruptedBetweenCycles = true;
+                            break;
+                        }
+                    }
+
+                    if (progressReportBytes > 0 && progressReportCounter >= PROGRESS_REPORT_COUNT) {
 //                    Log.v(TAG, "progressReportBytes:" + progressReportBytes + "; progressReportCounter:" + progressReportCounter);
-                    reportProgress(State.IN_PROGRESS, progressReportBytes, null);
-                    progressReportBytes = 0;
-                    progressReportCounter = 0;
+                        reportProgress(State.IN_PROGRESS, progressReportBytes, null);
+                        progressReportBytes = 0;
+                        progressReportCounter = 0;
+                    }
                 }
             }
 
@@ -200,21 +287,40 @@ public class DownloadTask {
                 stopReason = State.COMPLETED;
             }
 
+        } catch (RetryException e) {
+            // Server busy or failing -- consider retry.
+            if (shouldRetry()) {
+                throw e;
+            }
+            stopReason = State.ERROR;
+            stopError = e;
+
         } catch (SocketTimeoutException e) {
             // Not a fatal error -- consider retry.
-            retryCount++;
-            if (retryCount < downloadSettings.maxDownloadRetries) {
-                throw new HttpRetryException(e.getMessage(), 1, uri.toString());
+            if (shouldRetry()) {
+                throw new RetryException(RetryCause.TIMEOUT, -1, uri, -1);
             }
 //            Log.d(TAG, "Task " + taskId + " failed", e);
             stopReason = State.ERROR;
             stopError = e;
 
-        } catch (InterruptedIOException e) {
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
             // Not an error -- task is cancelled.
 //            Log.d(TAG, "Task " + taskId + " interrupted: " + futureId);
             stopReason = State.STOPPED;
 
+        } catch (SocketException e) {
+            if (Thread.currentThread().isInterrupted()) {
+                // The connection was closed because the task was cancelled.
+                stopReason = State.STOPPED;
+            } else if (shouldRetry()) {
+                // Reset, refused, broken pipe -- consider retry.
+                throw new RetryException(RetryCause.CONNECTION_RESET, -1, uri, -1);
+            } else {
+                stopReason = State.ERROR;
+                stopError = e;
+            }
+
         } catch (IOException e) {
 //            Log.d(TAG, "Task " + taskId + " failed", e);
             stopReason = State.ERROR;
@@ -223,8 +329,9 @@ public class DownloadTask {
         } finally {
             Utils.safeClose(inputStream, fileOutputStream);
             if (conn != null) {
-                conn.disconnect();
+                conn.release(stopReason == State.COMPLETED);
             }
+            BufferPool.shared().release(allocation);
 
             // Maybe some bytes are still waiting to be reported
             if (progressReportBytes > 0) {
@@ -236,6 +343,251 @@ public class DownloadTask {
         }
     }
 
+    /**
+     * Send the GET request. If there's a partial file, ask only for the rest of it, on condition
+     * (If-Range) that the remote object hasn't changed since the partial file was written;
+     * otherwise the server sends the whole object.
+     *
+     * @return a 200 or 206 response, or null if the local file turned out to be complete.
+     */
+    @Nullable
+    private HttpTransport.Connection openResponse(Uri uri, Map<String, String> headers, long localFileSize) throws IOException {
+        Map<String, String> requestHeaders = headers;
+        if (localFileSize > 0) {
+            requestHeaders = headers != null ? new HashMap<>(headers) : new HashMap<>();
+            requestHeaders.put("Range", "bytes=" + localFileSize + "-");
+            if (validator != null) {
+                requestHeaders.put("If-Range", validator);
+            }
+        }
+
+        HttpTransport.Connection conn = Utils.getHttpTransport().open(uri, "GET", requestHeaders, downloadSettings.httpTimeoutMillis);
+        try {
+            int response = conn.getResponseCode();
+
+            if (response == 416 && localFileSize > 0) {
+                // Nothing after the local length: the file is complete, or longer than the remote.
+                final long[] range = Utils.parseContentRange(conn.getHeaderField("Content-Range"));
+                final long remoteLength = range != null ? range[2] : -1;
+                conn.release(false);
+                conn = null;
+                if (remoteLength == localFileSize) {
+                    return null;
+                }
+                Log.w(TAG, "Target file is longer than remote. Deleting the target.");
+                if (!targetFile.delete()) {
+                    Log.w(TAG, "Can't delete targetFile");
+                }
+                return openResponse(uri, headers, 0);
+            }
+
+            checkResponse(conn, uri);
+
+            final long[] range = response == 206 ? Utils.parseContentRange(conn.getHeaderField("Content-Range")) : null;
+            if (response == 206 && (range == null || range[0] != localFileSize)) {
+                throw new IOException(Utils.format("Unexpected Content-Range for %s: %s", uri, conn.getHeaderField("Content-Range")));
+            }
+
+            updateResumeInfo(conn, range != null ? range[2] : conn.getContentLength());
+
+            final HttpTransport.Connection result = conn;
+            conn = null;
+            return result;
+
+        } finally {
+            if (conn != null) {
+                conn.release(false);
+            }
+        }
+    }
+
+    private static void checkResponse(HttpTransport.Connection conn, Uri uri) throws IOException {
+        final int response = conn.getResponseCode();
+        if (response == 429) {
+            throw new RetryException(RetryCause.RATE_LIMITED, response, uri,
+                    Utils.parseRetryAfterMs(conn.getHeaderField("Retry-After")));
+        }
+        if (response >= 500) {
+            throw new RetryException(RetryCause.SERVER_ERROR, response, uri, -1);
+        }
+        if (response >= 400) {
+            throw new IOException(Utils.format("Response code for %s is %d", uri, response));
+        }
+    }
+
+    /**
+     * Work on the ranges of the file until there's nothing left for this worker.
+     *
+     * @return false if interrupted.
+     */
+    private boolean downloadRanges(Uri uri, Map<String, String> headers) throws IOException {
+        final RangedDownload ranged = rangedDownload;
+        try {
+            ranged.preallocate();
+            RangedDownload.Range range;
+            while ((range = ranged.claim(this)) != null) {
+                if (!downloadRange(uri, headers, ranged, range)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            ranged.release(this);
+        }
+    }
+
+    // Fetch the range into its place in the file, until it ends (possibly earlier than requested,
+    // if another worker stole its end). Returns false if interrupted.
+    private boolean downloadRange(Uri uri, Map<String, String> headers, RangedDownload ranged, RangedDownload.Range range) throws IOException {
+        final long from;
+        final long to;
+        synchronized (ranged) {
+            from = range.position;
+            to = range.end;
+        }
+
+        final Map<String, String> requestHeaders = headers != null ? new HashMap<>(headers) : new HashMap<>();
+        requestHeaders.put("Accept-Encoding", "");
+        requestHeaders.put("Range", "bytes=" + from + "-" + (to - 1));
+        final String rangeValidator = ranged.getValidator();
+        if (rangeValidator != null) {
+            requestHeaders.put("If-Range", rangeValidator);
+        }
+
+        HttpTransport.Connection conn = null;
+        boolean reusable = false;
+        try (RandomAccessFile file = new RandomAccessFile(targetFile, "rw")) {
+            conn = Utils.getHttpTransport().open(uri, "GET", requestHeaders, downloadSettings.httpTimeoutMillis);
+            checkResponse(conn, uri);
+            final long[] contentRange = conn.getResponseCode() == 206 ? Utils.parseContentRange(conn.getHeaderField("Content-Range")) : null;
+            if (contentRange == null || contentRange[0] != from || contentRange[2] != ranged.length) {
+                // Ranges aren't supported, or the remote file changed (a 200 to If-Range): nothing
+                // fits the preallocated file.
+                throw new IOException(Utils.format("Unexpected range response for %s: %d %s", uri, conn.getResponseCode(), conn.getHeaderField("Content-Range")));
+            }
+            if (!ranged.acceptValidator(validatorOf(conn))) {
+                // Another range was fetched from a different version of the file.
+                throw new IOException(Utils.format("Remote file changed during ranged download: %s", uri));
+            }
+
+            final ReadableByteChannel source = Channels.newChannel(conn.getInputStream());
+            final FileChannel target = file.getChannel();
+            final ByteBuffer buffer = nioBuffer(downloadSettings.nioTransferBufferSize);
+
+            final BandwidthMeter meter = this.bandwidthMeter;
+            final AtomicLong meterItemCounter = meter != null ? meter.itemCounter(itemId) : null;
+            final BandwidthThrottle throttle = this.bandwidthThrottle;
+            final BandwidthThrottle.Bucket globalBucket = throttle != null ? throttle.globalBucket() : null;
+            final BandwidthThrottle.Bucket itemBucket = throttle != null ? throttle.itemBucket(itemId) : null;
+
+            long writePosition = from;
+            while (true) {
+                if (Thread.interrupted()) {
+                    return false;
+                }
+
+                final int byteCount = source.read(buffer);
+
+                if (meter != null) {
+                    meter.onBytesTransferred(meterItemCounter, byteCount);
+                }
+
+                if (throttle != null && !waitForBandwidth(globalBucket, itemBucket, byteCount)) {
+                    return false;
+                }
+
+                if (byteCount < 0 || !buffer.hasRemaining()) {
+                    buffer.flip();
+                    final int allowed = ranged.reserve(range, buffer.remaining());
+                    buffer.limit(allowed);
+                    while (buffer.hasRemaining()) {
+                        writePosition += target.write(buffer, writePosition);
+                    }
+                    ranged.commit(range);
+                    buffer.clear();
+                    if (allowed > 0) {
+                        reportProgress(State.IN_PROGRESS, allowed, null);
+                    }
+                    if (ranged.isDone(range)) {
+                        // The rest of the response, if any, belongs to another worker.
+                        reusable = byteCount < 0;
+                        return true;
+                    }
+                }
+
+                if (byteCount < 0) {
+                    throw new IOException(Utils.format("Range of %s ended at %d", uri, writePosition));
+                }
+            }
+
+        } finally {
+            if (conn != null) {
+                conn.release(reusable);
+            }
+        }
+    }
+
+    // Remember what's needed to resume this file with If-Range, or to find it complete without a
+    // request, and report it if it changed. It must be saved before the download ends: after a
+    // crash, the file may be partial or complete on disk while the db still says pending.
+    private void updateResumeInfo(HttpTransport.Connection conn, long remoteLength) {
+        final String newValidator = validatorOf(conn);
+        if (TextUtils.equals(newValidator, validator) && remoteLength == expectedLength) {
+            return;
+        }
+        validator = newValidator;
+        expectedLength = remoteLength;
+        final ResumeInfoListener resumeInfoListener = this.resumeInfoListener;
+        if (resumeInfoListener != null) {
+            resumeInfoListener.onResumeInfo(this);
+        }
+    }
+
+    // The response's validator for If-Range: a strong ETag, or Last-Modified.
+    @Nullable
+    private static String validatorOf(HttpTransport.Connection conn) {
+        final String etag = conn.getHeaderField("ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            return etag;
+        }
+        // If-Range requires a strong validator
+        return conn.getHeaderField("Last-Modified");
+    }
+
+    // Charge the bytes to both rate limits and wait as needed. Returns false if interrupted.
+    private static boolean waitForBandwidth(BandwidthThrottle.Bucket global, BandwidthThrottle.Bucket item, int bytes) {
+        final long waitNanos = Math.max(global.charge(bytes), item.charge(bytes));
+        if (waitNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitNanos);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // One direct buffer per worker thread, reused by all the tasks it runs.
+    private static ByteBuffer nioBuffer(int size) {
+        ByteBuffer buffer = nioBuffers.get();
+        if (buffer == null || buffer.capacity() != size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            nioBuffers.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static int writeFully(ByteBuffer buffer, FileChannel target) throws IOException {
+        int written = 0;
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            written += target.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+
     private void reportProgress(final State state, final int newBytes, Exception stopError) {
 //        Log.d(TAG, "progress: " + this.taskId + ", " + state + ", " + newBytes + ", " + stopError);
         listener.onTaskProgress(this, state, newBytes, stopError);
@@ -249,6 +601,10 @@ public class DownloadTask {
         this.listener = listener;
     }
 
+    void setResumeInfoListener(ResumeInfoListener resumeInfoListener) {
+        this.resumeInfoListener = resumeInfoListener;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -268,11 +624,41 @@ public class DownloadTask {
         this.downloadSettings = downloadSettings;
     }
 
+    void setBandwidthMeter(BandwidthMeter bandwidthMeter) {
+        this.bandwidthMeter = bandwidthMeter;
+    }
+
+    void setBandwidthThrottle(BandwidthThrottle bandwidthThrottle) {
+        this.bandwidthThrottle = bandwidthThrottle;
+    }
+
     enum State {
         IDLE, STARTED, IN_PROGRESS, COMPLETED, STOPPED, ERROR
     }
 
+    // Transient failures; the names are used in ContentManager.Metrics.retries.
+    enum RetryCause {
+        TIMEOUT, SERVER_ERROR, RATE_LIMITED, CONNECTION_RESET
+    }
+
+    // Thrown by download() when the task should be tried again later.
+    static class RetryException extends HttpRetryException {
+        final RetryCause retryCause;
+        final long retryAfterMs;    // requested by the server, or -1
+
+        RetryException(RetryCause retryCause, int responseCode, Uri uri, long retryAfterMs) {
+            super(retryCause.name(), responseCode, uri.toString());
+            this.retryCause = retryCause;
+            this.retryAfterMs = retryAfterMs;
+        }
+    }
+
     interface Listener {
         void onTaskProgress(DownloadTask task, State newState, int newBytes, Exception stopError);
     }
+
+    // Called from the download thread when validator or expectedLength change, on the first response.
+    interface ResumeInfoListener {
+        void onResumeInfo(DownloadTask task);
+    }
 }
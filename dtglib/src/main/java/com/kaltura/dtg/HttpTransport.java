@@ -0,0 +1,71 @@
+package com.kaltura.dtg;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * The network layer used by the download engine. All manifest, HEAD and segment requests go
+ * through the transport set in {@link ContentManager.Settings#httpTransport}; if none is set,
+ * {@link DefaultHttpTransport} is used.
+ * <p>
+ * Implementations are called concurrently from all download workers.
+ */
+public interface HttpTransport {
+
+    /**
+     * Send a request and return once the response headers are available.
+     *
+     * @param uri           request URL
+     * @param method        "GET" or "HEAD"
+     * @param headers       request headers, may be null
+     * @param timeoutMillis connect/read timeout; 0 means the transport's default
+     * @return an open connection; the caller must {@link Connection#release(boolean)} it.
+     */
+    @NonNull
+    Connection open(@NonNull Uri uri, @NonNull String method, @Nullable Map<String, String> headers, int timeoutMillis) throws IOException;
+
+    interface Connection {
+        /**
+         * @return the URL that finally served the response (after redirects handled by the transport).
+         */
+        URL getURL();
+
+        int getResponseCode() throws IOException;
+
+        @Nullable
+        String getHeaderField(@NonNull String name);
+
+        /**
+         * @return the response Content-Length, or -1 if unknown.
+         */
+        long getContentLength();
+
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * Release the connection.
+         *
+         * @param reusable true if the response body was read to the end and the underlying
+         *                 connection may be used for another request.
+         */
+        void release(boolean reusable);
+    }
+
+    /**
+     * Implemented by transports that know whether each request was sent on a new connection or on
+     * a pooled one, like {@link OkHttpTransport}. The counts are reported in
+     * {@link ContentManager.Metrics}.
+     */
+    interface ConnectionStats {
+        long getConnectionsOpened();
+
+        long getConnectionsReused();
+    }
+}
@@ -0,0 +1,212 @@
+package com.kaltura.dtg;
+
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory {@link HttpTransport} for tests and benchmarks. Serves the bodies registered with
+ * {@link #put(String, byte[])} and answers 404 for anything else. No sockets are opened.
+ * <p>
+ * Supports HEAD and single Range requests ("bytes=a-b", "bytes=a-" and "bytes=-n"), answered with
+ * 206 and Content-Range, or 416 if the range starts past the end. Every put() gives the body a new
+ * ETag; a Range with an If-Range that doesn't match it gets the whole body with 200, like a real
+ * server whose file changed.
+ */
+public class LoopbackHttpTransport implements HttpTransport {
+
+    private static class Resource {
+        final byte[] body;
+        final String etag;
+
+        Resource(byte[] body, String etag) {
+            this.body = body;
+            this.etag = etag;
+        }
+    }
+
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong requestCount = new AtomicLong();
+    private volatile long latencyMillis;
+
+    /**
+     * Serve the body at the URL, replacing (with a new ETag) any previous body.
+     */
+    public void put(@NonNull String url, @NonNull byte[] body) {
+        resources.put(url, new Resource(body, "\"" + versions.incrementAndGet() + "\""));
+    }
+
+    public void remove(@NonNull String url) {
+        resources.remove(url);
+    }
+
+    /**
+     * Simulated time to first byte, applied to every request.
+     */
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    @NonNull
+    @Override
+    public Connection open(@NonNull Uri uri, @NonNull String method, @Nullable Map<String, String> headers, int timeoutMillis) throws IOException {
+        requestCount.incrementAndGet();
+
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + uri);
+            }
+        }
+
+        final URL url = new URL(uri.toString());
+        final Resource resource = resources.get(uri.toString());
+        if (resource == null) {
+            return new LoopbackConnection(url, HttpURLConnection.HTTP_NOT_FOUND, new byte[0], 0, 0);
+        }
+        final byte[] body = resource.body;
+
+        final String range = findHeader(headers, "Range");
+        final String ifRange = findHeader(headers, "If-Range");
+        final int[] bounds = range != null && (ifRange == null || ifRange.equals(resource.etag)) ? parseRange(range, body.length) : null;
+
+        final LoopbackConnection conn;
+        if (bounds == null) {
+            conn = new LoopbackConnection(url, HttpURLConnection.HTTP_OK, body, 0, "HEAD".equals(method) ? 0 : body.length);
+            conn.headers.put("Content-Length", String.valueOf(body.length));
+        } else if (bounds[0] >= body.length) {
+            conn = new LoopbackConnection(url, 416, body, 0, 0);
+            conn.headers.put("Content-Range", "bytes */" + body.length);
+        } else {
+            final int length = bounds[1] - bounds[0] + 1;
+            conn = new LoopbackConnection(url, HttpURLConnection.HTTP_PARTIAL, body, bounds[0], "HEAD".equals(method) ? 0 : length);
+            conn.headers.put("Content-Length", String.valueOf(length));
+            conn.headers.put("Content-Range", "bytes " + bounds[0] + "-" + bounds[1] + "/" + body.length);
+        }
+        conn.headers.put("ETag", resource.etag);
+        conn.headers.put("Accept-Ranges", "bytes");
+        return conn;
+    }
+
+    @Nullable
+    private static String findHeader(@Nullable Map<String, String> headers, String name) {
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (name.equalsIgnoreCase(entry.getKey())) {
+                    return entry.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Parse a single byte range, like a server would.
+     *
+     * @return {first, last}, with first >= length if the range can't be satisfied, or null if the
+     * header is invalid or asks for several ranges (the whole body is sent then).
+     */
+    @Nullable
+    static int[] parseRange(String range, int length) {
+        final String value = range.trim().toLowerCase();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        final String spec = value.substring("bytes=".length()).trim();
+        final int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            if (dash == 0) {
+                // Suffix: the last n bytes
+                final long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0) {
+                    return new int[]{length, length};
+                }
+                return new int[]{(int) Math.max(0, length - suffix), length - 1};
+            }
+            final long first = Long.parseLong(spec.substring(0, dash));
+            final long last = dash == spec.length() - 1 ? length - 1 : Long.parseLong(spec.substring(dash + 1));
+            if (first >= length) {
+                return new int[]{length, length};
+            }
+            if (last < first) {
+                return null;
+            }
+            return new int[]{(int) first, (int) Math.min(last, length - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static class LoopbackConnection implements Connection {
+        private final URL url;
+        private final int code;
+        private final byte[] body;
+        private final int offset;
+        private final int length;
+        private final Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        private LoopbackConnection(URL url, int code, byte[] body, int offset, int length) {
+            this.url = url;
+            this.code = code;
+            this.body = body;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Nullable
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            final String contentLength = headers.get("Content-Length");
+            return contentLength != null ? Long.parseLong(contentLength) : -1;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (code >= 400) {
+                throw new IOException("Response code " + code + " for " + url);
+            }
+            return new ByteArrayInputStream(body, offset, length);
+        }
+
+        @Override
+        public void release(boolean reusable) {
+            // Nothing to release.
+        }
+    }
+}
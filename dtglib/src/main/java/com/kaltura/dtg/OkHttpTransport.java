@@ -0,0 +1,178 @@
+package com.kaltura.dtg;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.ConnectionPool;
+import okhttp3.EventListener;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * {@link HttpTransport} backed by OkHttp, with its own connection pool. Unlike the platform's
+ * HttpURLConnection pool, its size and keep-alive apply to this transport only, whenever it's
+ * created, and it reports how many requests were sent on a new or on a pooled connection (see
+ * {@link ContentManager.Metrics#connectionsReused}).
+ * <p>
+ * OkHttp (3.12 or later) is not a dependency of this library: apps that use this transport must
+ * add it themselves.
+ */
+public class OkHttpTransport implements HttpTransport, HttpTransport.ConnectionStats {
+
+    private final OkHttpClient client;
+    private volatile OkHttpClient timeoutClient;    // client with the last requested timeout
+    private final AtomicLong connectionsOpened = new AtomicLong();
+    private final AtomicLong connectionsAcquired = new AtomicLong();
+
+    /**
+     * @param maxIdleConnections idle connections kept in the pool, all hosts together
+     * @param keepAliveMillis    time an idle connection is kept
+     */
+    public OkHttpTransport(int maxIdleConnections, long keepAliveMillis) {
+        this(new OkHttpClient.Builder()
+                .connectionPool(new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS))
+                .build());
+    }
+
+    /**
+     * Use the app's client, sharing its connection pool. The transport installs its own
+     * EventListener to count connections, replacing the client's.
+     */
+    public OkHttpTransport(@NonNull OkHttpClient client) {
+        this.client = client.newBuilder()
+                .eventListener(new EventListener() {
+                    @Override
+                    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+                        connectionsOpened.incrementAndGet();
+                    }
+
+                    @Override
+                    public void connectionAcquired(Call call, okhttp3.Connection connection) {
+                        connectionsAcquired.incrementAndGet();
+                    }
+                })
+                .build();
+        this.timeoutClient = this.client;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.get();
+    }
+
+    @Override
+    public long getConnectionsReused() {
+        return Math.max(0, connectionsAcquired.get() - connectionsOpened.get());
+    }
+
+    @NonNull
+    @Override
+    public Connection open(@NonNull Uri uri, @NonNull String method, @Nullable Map<String, String> headers, int timeoutMillis) throws IOException {
+        final Request.Builder builder = new Request.Builder()
+                .url(uri.toString())
+                .method(method, null);
+        final Map<String, String> defaultHeaders = Utils.getDefaultHeaders();
+        if (defaultHeaders != null) {
+            for (Map.Entry<String, String> entry : defaultHeaders.entrySet()) {
+                builder.header(entry.getKey(), entry.getValue());
+            }
+        }
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                builder.header(entry.getKey(), entry.getValue());
+            }
+        }
+
+        final Call call = clientFor(timeoutMillis).newCall(builder.build());
+        return new OkHttpConnection(call, call.execute());
+    }
+
+    // Clients derived with newBuilder() share the pool and the listener.
+    private OkHttpClient clientFor(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return client;
+        }
+        OkHttpClient derived = timeoutClient;
+        if (derived.readTimeoutMillis() != timeoutMillis || derived.connectTimeoutMillis() != timeoutMillis) {
+            derived = client.newBuilder()
+                    .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .build();
+            timeoutClient = derived;
+        }
+        return derived;
+    }
+
+    private static class OkHttpConnection implements Connection {
+        private final Call call;
+        private final Response response;
+
+        private OkHttpConnection(Call call, Response response) {
+            this.call = call;
+            this.response = response;
+        }
+
+        @Override
+        public URL getURL() {
+            return response.request().url().url();
+        }
+
+        @Override
+        public int getResponseCode() {
+            return response.code();
+        }
+
+        @Nullable
+        @Override
+        public String getHeaderField(@NonNull String name) {
+            return response.header(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            final String contentLength = response.header("Content-Length");
+            if (TextUtils.isEmpty(contentLength)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentLength);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            final ResponseBody body = response.body();
+            if (body == null) {
+                throw new IOException("No response body for " + getURL());
+            }
+            return body.byteStream();
+        }
+
+        @Override
+        public void release(boolean reusable) {
+            if (!reusable) {
+                // Don't let OkHttp drain the rest of the body to keep the connection.
+                call.cancel();
+            }
+            response.close();
+        }
+    }
+}
@@ -30,6 +30,17 @@ class PausableThreadPoolExecutor extends ThreadPoolExecutor {
         }
     }
 
+    // Change the number of worker threads. Extra threads exit after finishing their current task.
+    void setPoolSize(int nThreads) {
+        if (nThreads > getMaximumPoolSize()) {
+            setMaximumPoolSize(nThreads);
+            setCorePoolSize(nThreads);
+        } else {
+            setCorePoolSize(nThreads);
+            setMaximumPoolSize(nThreads);
+        }
+    }
+
     void pause() {
         pauseLock.lock();
         try {
@@ -0,0 +1,201 @@
+package com.kaltura.dtg;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A single large file downloaded over several connections. The file is preallocated and split
+ * into byte ranges; each worker task fetches one range and writes it in place. A worker that runs
+ * out of work takes over a range nobody is working on, or steals the second half of the largest
+ * range still in progress.
+ * Only the remaining part of each range (position..end) is saved in the db, so a restarted
+ * download continues where the ranges stopped. The validator (ETag or Last-Modified) of the first
+ * response is saved with them; later ranges are requested with If-Range and must match it, so
+ * parts of different versions of the remote file are never mixed.
+ */
+class RangedDownload {
+
+    private static final long MIN_STEAL_BYTES = 1024 * 1024;   // don't split ranges with less than twice this left
+
+    // A part of the file still to be fetched: position..end, end exclusive.
+    static class Range {
+        long position;      // written and committed up to here
+        long reserved;      // position + bytes being written by the owner
+        long end;           // may move back when another worker steals the rest
+        DownloadTask owner;
+
+        Range(long position, long end) {
+            this.position = position;
+            this.reserved = position;
+            this.end = end;
+        }
+    }
+
+    final DownloadTask file;    // the task in the db; never downloaded itself
+    final long length;
+    private final List<Range> ranges;
+    private String validator;
+    private boolean preallocated;
+    private boolean completed;
+
+    RangedDownload(@NonNull DownloadTask file, long length, @NonNull List<Range> ranges, @Nullable String validator) {
+        this.file = file;
+        this.length = length;
+        this.ranges = ranges;
+        this.validator = validator;
+    }
+
+    /**
+     * Split a new file into equal ranges.
+     */
+    static RangedDownload split(DownloadTask file, long length, int count) {
+        final List<Range> ranges = new ArrayList<>(count);
+        final long size = length / count;
+        for (int i = 0; i < count; i++) {
+            ranges.add(new Range(i * size, i == count - 1 ? length : (i + 1) * size));
+        }
+        return new RangedDownload(file, length, ranges, null);
+    }
+
+    /**
+     * Create the tasks that download the ranges. They share the file's fields and this object.
+     */
+    List<DownloadTask> newWorkers(int count) {
+        final List<DownloadTask> workers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final DownloadTask worker = new DownloadTask(file.url, file.targetFile, file.order);
+            worker.itemId = file.itemId;
+            worker.fileId = file.fileId;
+            worker.trackRelativeId = file.trackRelativeId;
+            worker.rangedDownload = this;
+            workers.add(worker);
+        }
+        return workers;
+    }
+
+    // Create the target file at its full size, once.
+    synchronized void preallocate() throws IOException {
+        if (preallocated) {
+            return;
+        }
+        if (file.targetFile.length() != length) {
+            try (RandomAccessFile raf = new RandomAccessFile(file.targetFile, "rw")) {
+                raf.setLength(length);
+            }
+        }
+        preallocated = true;
+    }
+
+    /**
+     * Give the worker a range: the one it already owns if it isn't done, else an abandoned one,
+     * else the second half of the largest one in progress.
+     *
+     * @return the range, or null if there's nothing left for this worker.
+     */
+    synchronized @Nullable Range claim(DownloadTask worker) {
+        Range largest = null;
+        for (Iterator<Range> it = ranges.iterator(); it.hasNext(); ) {
+            final Range range = it.next();
+            if (range.position >= range.end) {
+                it.remove();
+                continue;
+            }
+            if (range.owner == worker) {
+                return range;
+            }
+            if (range.owner == null) {
+                range.owner = worker;
+                return range;
+            }
+            if (largest == null || range.end - range.reserved > largest.end - largest.reserved) {
+                largest = range;
+            }
+        }
+
+        if (largest == null || largest.end - largest.reserved < 2 * MIN_STEAL_BYTES) {
+            return null;
+        }
+        final long middle = largest.reserved + (largest.end - largest.reserved) / 2;
+        final Range stolen = new Range(middle, largest.end);
+        stolen.owner = worker;
+        largest.end = middle;
+        ranges.add(stolen);
+        return stolen;
+    }
+
+    // Before writing count bytes of the range: returns how many may be written, 0 if the range is done.
+    synchronized int reserve(Range range, int count) {
+        final int allowed = (int) Math.max(0, Math.min(count, range.end - range.reserved));
+        range.reserved += allowed;
+        return allowed;
+    }
+
+    // After writing the reserved bytes.
+    synchronized void commit(Range range) {
+        range.position = range.reserved;
+    }
+
+    synchronized boolean isDone(Range range) {
+        return range.position >= range.end;
+    }
+
+    synchronized @Nullable String getValidator() {
+        return validator;
+    }
+
+    /**
+     * Check the validator of a range response. The first one that has a validator sets it.
+     *
+     * @return false if the response is from a different version of the remote file.
+     */
+    synchronized boolean acceptValidator(@Nullable String responseValidator) {
+        if (validator == null) {
+            validator = responseValidator;
+            return true;
+        }
+        return validator.equals(responseValidator);
+    }
+
+    // The worker stopped: let others take over its ranges.
+    synchronized void release(DownloadTask worker) {
+        for (Range range : ranges) {
+            if (range.owner == worker) {
+                range.owner = null;
+                range.reserved = range.position;
+            }
+        }
+    }
+
+    /**
+     * @return true once, when all ranges are done: the file is complete.
+     */
+    synchronized boolean complete() {
+        if (completed) {
+            return false;
+        }
+        for (Range range : ranges) {
+            if (range.position < range.end) {
+                return false;
+            }
+        }
+        completed = true;
+        return true;
+    }
+
+    // The remaining parts, as {position, end}.
+    synchronized List<long[]> remaining() {
+        final List<long[]> remaining = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            if (range.position < range.end) {
+                remaining.add(new long[]{range.position, range.end});
+            }
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,188 @@
+package com.kaltura.dtg;
+
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The items that were in progress when the service stopped, with the first pending tasks of each.
+ * The next start queues these tasks right away, without reading the items or tasks from the db;
+ * later tasks are read from the db as usual.
+ * Written on stop and deleted when read, so after a crash there's no snapshot and the service
+ * falls back to the db.
+ */
+class ResumeSnapshot {
+
+    private static final String TAG = "ResumeSnapshot";
+    private static final int MAGIC = 0x44544753;    // "DTGS"
+    private static final int FORMAT_VERSION = 4;
+
+    static class Entry {
+        final DownloadItemImp item;
+        final List<DownloadTask> tasks;     // in db order
+
+        Entry(DownloadItemImp item, List<DownloadTask> tasks) {
+            this.item = item;
+            this.tasks = tasks;
+        }
+    }
+
+    private ResumeSnapshot() {}
+
+    /**
+     * @param dbConfig identifies the db schema and task storage. Task ids aren't valid across them.
+     */
+    static void write(@NonNull File file, @NonNull String dbConfig, @NonNull List<Entry> entries) {
+        final File tmpFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(dbConfig);
+            out.writeInt(entries.size());
+            for (Entry entry : entries) {
+                writeItem(out, entry.item);
+                out.writeInt(entry.tasks.size());
+                for (DownloadTask task : entry.tasks) {
+                    writeTask(out, task);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write snapshot", e);
+            tmpFile.delete();
+            return;
+        }
+        if (!tmpFile.renameTo(file)) {
+            Log.w(TAG, "Failed to rename snapshot");
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Read and delete the snapshot.
+     *
+     * @return the entries, or null if there's no valid snapshot for this dbConfig.
+     */
+    static @Nullable List<Entry> read(@NonNull File file, @NonNull String dbConfig) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || !in.readUTF().equals(dbConfig)) {
+                return null;
+            }
+            final int itemCount = in.readInt();
+            final List<Entry> entries = new ArrayList<>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                final DownloadItemImp item = readItem(in);
+                final int taskCount = in.readInt();
+                final List<DownloadTask> tasks = new ArrayList<>(taskCount);
+                for (int j = 0; j < taskCount; j++) {
+                    tasks.add(readTask(in, item.getItemId()));
+                }
+                entries.add(new Entry(item, tasks));
+            }
+            return entries;
+
+        } catch (IOException | IllegalArgumentException e) {
+            Log.w(TAG, "Failed to read snapshot", e);
+            return null;
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static void writeItem(DataOutputStream out, DownloadItemImp item) throws IOException {
+        out.writeUTF(item.getItemId());
+        out.writeUTF(item.getContentURL());
+        out.writeUTF(item.getState().name());
+        out.writeLong(item.getAddedTime());
+        out.writeLong(item.getEstimatedSizeBytes());
+        out.writeLong(item.getDownloadedSizeBytes());
+        writeNullableString(out, item.getPlaybackPath());
+        writeNullableString(out, item.getDataDir());
+        out.writeLong(item.getDurationMS());
+        out.writeInt(item.totalFileCount);
+        out.writeInt(item.pendingFileCount.get());
+    }
+
+    private static DownloadItemImp readItem(DataInputStream in) throws IOException {
+        final DownloadItemImp item = new DownloadItemImp(in.readUTF(), in.readUTF());
+        item.setState(DownloadState.valueOf(in.readUTF()));
+        item.setAddedTime(in.readLong());
+        item.setEstimatedSizeBytes(in.readLong());
+        item.setDownloadedSizeBytes(in.readLong());
+        item.setPlaybackPath(readNullableString(in));
+        item.setDataDir(readNullableString(in));
+        item.setDurationMS(in.readLong());
+        item.totalFileCount = in.readInt();
+        item.pendingFileCount.set(in.readInt());
+        return item;
+    }
+
+    private static void writeTask(DataOutputStream out, DownloadTask task) throws IOException {
+        out.writeUTF(task.url.toString());
+        out.writeUTF(task.targetFile.getAbsolutePath());
+        out.writeInt(task.order);
+        out.writeLong(task.fileId);
+        writeNullableString(out, task.trackRelativeId);
+        writeNullableString(out, task.validator);
+        out.writeLong(task.expectedLength);
+        out.writeBoolean(task.resumeInfoStored);
+        out.writeBoolean(task.rangedDownload != null);
+        if (task.rangedDownload != null) {
+            final List<long[]> ranges = task.rangedDownload.remaining();
+            out.writeLong(task.rangedDownload.length);
+            writeNullableString(out, task.rangedDownload.getValidator());
+            out.writeInt(ranges.size());
+            for (long[] range : ranges) {
+                out.writeLong(range[0]);
+                out.writeLong(range[1]);
+            }
+        }
+    }
+
+    private static DownloadTask readTask(DataInputStream in, String itemId) throws IOException {
+        final DownloadTask task = new DownloadTask(Uri.parse(in.readUTF()), new File(in.readUTF()), in.readInt());
+        task.itemId = itemId;
+        task.fileId = in.readLong();
+        task.trackRelativeId = readNullableString(in);
+        task.validator = readNullableString(in);
+        task.expectedLength = in.readLong();
+        task.resumeInfoStored = in.readBoolean();
+        if (in.readBoolean()) {
+            final long length = in.readLong();
+            final String validator = readNullableString(in);
+            final int count = in.readInt();
+            final List<RangedDownload.Range> ranges = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                ranges.add(new RangedDownload.Range(in.readLong(), in.readLong()));
+            }
+            task.rangedDownload = new RangedDownload(task, length, ranges, validator);
+        }
+        return task;
+    }
+
+    private static void writeNullableString(DataOutputStream out, @Nullable String string) throws IOException {
+        out.writeBoolean(string != null);
+        if (string != null) {
+            out.writeUTF(string);
+        }
+    }
+
+    private static @Nullable String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -10,7 +10,11 @@ import androidx.annotation.Nullable;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 class ServiceProxy {
 
@@ -87,6 +91,34 @@ class ServiceProxy {
         service.removeItem((DownloadItemImp) item);
     }
 
+    public List<? extends DownloadItem> createItems(Map<String, String> contentURLs) throws Utils.DirectoryNotCreatableException {
+        return service.createItems(contentURLs);
+    }
+
+    public void startDownloads(List<? extends DownloadItem> items) {
+        service.startDownloads(toImp(items));
+    }
+
+    public void pauseDownloads(List<? extends DownloadItem> items) {
+        service.pauseDownloads(toImp(items));
+    }
+
+    public void removeItems(List<? extends DownloadItem> items) {
+        service.removeItems(toImp(items));
+    }
+
+    private static List<DownloadItemImp> toImp(List<? extends DownloadItem> items) {
+        final List<DownloadItemImp> imps = new ArrayList<>(items.size());
+        for (DownloadItem item : items) {
+            imps.add((DownloadItemImp) item);
+        }
+        return imps;
+    }
+
+    public boolean resumeFromSnapshot() {
+        return service.resumeFromSnapshot();
+    }
+
     public DownloadItem findItem(String itemId) {
         return service.findItem(itemId);
     }
@@ -103,6 +135,26 @@ class ServiceProxy {
         return service.getDownloads(states);
     }
 
+    public Future<DownloadItem> findItemAsync(String itemId, Executor executor, ContentManager.ResultListener<DownloadItem> listener) {
+        final DownloadService service = this.service;
+        return service.submitQuery(() -> service.findItemConcurrently(itemId), executor, listener);
+    }
+
+    public Future<List<DownloadItem>> getDownloadsAsync(DownloadState[] states, Executor executor, ContentManager.ResultListener<List<DownloadItem>> listener) {
+        final DownloadService service = this.service;
+        return service.submitQuery(() -> new ArrayList<>(service.getDownloadsConcurrently(states)), executor, listener);
+    }
+
+    public Future<Long> getEstimatedItemSizeAsync(@Nullable String itemId, Executor executor, ContentManager.ResultListener<Long> listener) {
+        final DownloadService service = this.service;
+        return service.submitQuery(() -> service.getEstimatedItemSizeConcurrently(itemId), executor, listener);
+    }
+
+    public Future<DownloadItem> createItemAsync(String itemId, String contentURL, Executor executor, ContentManager.ResultListener<DownloadItem> listener) {
+        final DownloadService service = this.service;
+        return service.submitQuery(() -> service.createItem(itemId, contentURL), executor, listener);
+    }
+
     public String getPlaybackURL(String itemId) {
         return service.getPlaybackURL(itemId);
     }
@@ -130,4 +182,20 @@ class ServiceProxy {
     public long getEstimatedItemSize(@Nullable String itemId) {
         return service.getEstimatedItemSize(itemId);
     }
+
+    public void setBandwidthLimit(long bytesPerSecond) {
+        service.setBandwidthLimit(bytesPerSecond);
+    }
+
+    public void setItemBandwidthLimit(String itemId, long bytesPerSecond) {
+        service.setItemBandwidthLimit(itemId, bytesPerSecond);
+    }
+
+    public long getEstimatedTimeRemainingMs(String itemId) {
+        return service.getEstimatedTimeRemainingMs(itemId);
+    }
+
+    public ContentManager.Metrics getMetrics() {
+        return service.getMetrics();
+    }
 }
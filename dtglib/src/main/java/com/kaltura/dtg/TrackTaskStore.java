@@ -0,0 +1,516 @@
+package com.kaltura.dtg;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compact storage of download tasks: one row per track instead of one row per segment.
+ * The segment list (url, target file, order) is front-coded and deflated into a blob, and the
+ * completion state is a bitmap blob. Counts and pending lookups are in-memory bit operations.
+ * <p>
+ * Task ids are (trackKey << 32 | segment index), so they can be used like Files.FileID.
+ * All methods must be called with the Database lock held; writes go through the caller's transaction.
+ */
+class TrackTaskStore {
+    static final String TBL_TRACK_TASKS = "TrackTasks";
+    private static final String COL_TRACK_KEY = "TrackKey";
+    private static final String COL_ITEM_ID = "ItemID";
+    private static final String COL_TRACK_REL_ID = "TrackRelativeId";
+    private static final String COL_SEGMENTS = "Segments";
+    private static final String COL_COMPLETION = "Completion";
+    private static final String COL_SEGMENT_COUNT = "SegmentCount";
+    private static final String COL_PENDING_COUNT = "PendingCount";
+
+    private static final String NO_TRACK = "";  // tasks without a track (e.g. simple assets)
+    private static final int MAX_CACHED_SEGMENT_LISTS = 16;
+
+    private final SQLiteDatabase database;
+
+    // Counts and bitmaps of the items that were accessed, by item id.
+    private final Map<String, List<TrackTasks>> items = new HashMap<>();
+
+    // Decoded segment lists of recently used tracks, by track key.
+    private final Map<Long, Segments> segmentCache = new LinkedHashMap<Long, Segments>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Segments> eldest) {
+            return size() > MAX_CACHED_SEGMENT_LISTS;
+        }
+    };
+
+    TrackTaskStore(SQLiteDatabase database) {
+        this.database = database;
+    }
+
+    static void createTable(SQLiteDatabase db, String itemsTable) {
+        db.execSQL(Utils.createTable(
+                TBL_TRACK_TASKS,
+                COL_TRACK_KEY, "INTEGER PRIMARY KEY",
+                COL_ITEM_ID, "TEXT NOT NULL REFERENCES " + itemsTable + "(" + COL_ITEM_ID + ") ON DELETE CASCADE",
+                COL_TRACK_REL_ID, "TEXT NOT NULL",
+                COL_SEGMENTS, "BLOB NOT NULL",
+                COL_COMPLETION, "BLOB NOT NULL",
+                COL_SEGMENT_COUNT, "INTEGER NOT NULL",
+                COL_PENDING_COUNT, "INTEGER NOT NULL"
+        ));
+        db.execSQL(Utils.createUniqueIndex(TBL_TRACK_TASKS, COL_ITEM_ID, COL_TRACK_REL_ID));
+    }
+
+    // Scalar subquery for the total or pending task count of the outer table's item (and track).
+    static String countSubquery(String outerTable, @Nullable String outerTrackTable, boolean pendingOnly) {
+        return "(SELECT IFNULL(SUM(" + (pendingOnly ? COL_PENDING_COUNT : COL_SEGMENT_COUNT) + "),0) FROM " +
+                TBL_TRACK_TASKS + " t WHERE t." + COL_ITEM_ID + "==" + outerTable + "." + COL_ITEM_ID +
+                (outerTrackTable != null ? " AND t." + COL_TRACK_REL_ID + "==" + outerTrackTable + "." + COL_TRACK_REL_ID : "") + ")";
+    }
+
+    static long taskId(long trackKey, int index) {
+        return trackKey << 32 | index;
+    }
+
+    private static String trackKeyOf(@Nullable String trackRelativeId) {
+        return trackRelativeId != null ? trackRelativeId : NO_TRACK;
+    }
+
+    private List<TrackTasks> tracks(String itemId) {
+        List<TrackTasks> tracks = items.get(itemId);
+        if (tracks != null) {
+            return tracks;
+        }
+
+        tracks = new ArrayList<>();
+        try (Cursor cursor = database.query(TBL_TRACK_TASKS,
+                new String[]{COL_TRACK_KEY, COL_TRACK_REL_ID, COL_SEGMENT_COUNT, COL_PENDING_COUNT, COL_COMPLETION},
+                COL_ITEM_ID + "==?", new String[]{itemId}, null, null, COL_TRACK_KEY)) {
+
+            while (cursor.moveToNext()) {
+                final TrackTasks track = new TrackTasks(cursor.getLong(0), cursor.getString(1), cursor.getInt(2));
+                track.pending = cursor.getInt(3);
+                final byte[] completion = cursor.getBlob(4);
+                System.arraycopy(completion, 0, track.completion, 0, Math.min(completion.length, track.completion.length));
+                tracks.add(track);
+            }
+        }
+        items.put(itemId, tracks);
+        return tracks;
+    }
+
+    @Nullable
+    private TrackTasks findTrack(String itemId, String trackId) {
+        for (TrackTasks track : tracks(itemId)) {
+            if (track.trackId.equals(trackId)) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    @Nullable
+    private TrackTasks findTrack(String itemId, long trackKey) {
+        for (TrackTasks track : tracks(itemId)) {
+            if (track.key == trackKey) {
+                return track;
+            }
+        }
+        return null;
+    }
+
+    private Segments segments(TrackTasks track) {
+        Segments segments = segmentCache.get(track.key);
+        if (segments != null) {
+            return segments;
+        }
+        try (Cursor cursor = database.query(TBL_TRACK_TASKS, new String[]{COL_SEGMENTS},
+                COL_TRACK_KEY + "==?", new String[]{String.valueOf(track.key)}, null, null, null)) {
+
+            segments = cursor.moveToFirst() ? Segments.decode(cursor.getBlob(0)) : new Segments(0);
+        }
+        segmentCache.put(track.key, segments);
+        return segments;
+    }
+
+    /**
+     * Add tasks, grouped by track. URLs that already exist in their track are ignored.
+     *
+     * @param relativePaths target file of each task, as stored in the db
+     * @return number of tasks added, by track relative id (null for tasks without a track)
+     */
+    Map<String, Integer> addTasks(String itemId, List<DownloadTask> tasks, List<String> relativePaths) {
+        final Map<String, Integer> added = new HashMap<>();
+        final Map<String, List<Integer>> byTrack = new LinkedHashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            final String trackId = trackKeyOf(tasks.get(i).trackRelativeId);
+            List<Integer> indexes = byTrack.get(trackId);
+            if (indexes == null) {
+                indexes = new ArrayList<>();
+                byTrack.put(trackId, indexes);
+            }
+            indexes.add(i);
+        }
+
+        for (Map.Entry<String, List<Integer>> entry : byTrack.entrySet()) {
+            final TrackTasks existing = findTrack(itemId, entry.getKey());
+            final Segments oldSegments = existing != null ? segments(existing) : new Segments(0);
+            final Set<String> urls = new HashSet<>(Arrays.asList(oldSegments.urls));
+
+            final Segments segments = new Segments(oldSegments.size() + entry.getValue().size());
+            segments.append(oldSegments);
+            for (int i : entry.getValue()) {
+                final DownloadTask task = tasks.get(i);
+                final String url = task.url.toString();
+                if (urls.add(url)) {
+                    segments.add(url, relativePaths.get(i), task.order);
+                }
+            }
+            segments.trim();
+
+            final TrackTasks track = new TrackTasks(existing != null ? existing.key : 0, entry.getKey(), segments.size());
+            if (existing != null) {
+                System.arraycopy(existing.completion, 0, track.completion, 0, existing.completion.length);
+                track.pending = existing.pending + segments.size() - oldSegments.size();
+            } else {
+                track.pending = segments.size();
+            }
+            save(itemId, track, segments);
+
+            final int addedCount = segments.size() - oldSegments.size();
+            if (addedCount > 0) {
+                added.put(entry.getKey().equals(NO_TRACK) ? null : entry.getKey(), addedCount);
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Import a full track, for example when converting Files rows.
+     */
+    void importTrack(String itemId, @Nullable String trackRelativeId, Segments segments, boolean[] complete) {
+        final TrackTasks track = new TrackTasks(0, trackKeyOf(trackRelativeId), segments.size());
+        track.pending = segments.size();
+        for (int i = 0; i < complete.length; i++) {
+            if (complete[i]) {
+                track.setComplete(i);
+            }
+        }
+        save(itemId, track, segments);
+    }
+
+    private void save(String itemId, TrackTasks track, Segments segments) {
+        final ContentValues values = new ContentValues();
+        values.put(COL_ITEM_ID, itemId);
+        values.put(COL_TRACK_REL_ID, track.trackId);
+        values.put(COL_SEGMENTS, segments.encode());
+        values.put(COL_COMPLETION, track.completion);
+        values.put(COL_SEGMENT_COUNT, track.count);
+        values.put(COL_PENDING_COUNT, track.pending);
+
+        final List<TrackTasks> tracks = tracks(itemId);
+        if (track.key == 0) {
+            track.key = database.insertOrThrow(TBL_TRACK_TASKS, null, values);
+        } else {
+            database.update(TBL_TRACK_TASKS, values, COL_TRACK_KEY + "==?", new String[]{String.valueOf(track.key)});
+            for (int i = 0; i < tracks.size(); i++) {
+                if (tracks.get(i).key == track.key) {
+                    tracks.remove(i);
+                    break;
+                }
+            }
+        }
+        tracks.add(track);
+        segmentCache.put(track.key, segments);
+    }
+
+    /**
+     * Read up to limit pending tasks ordered by (order, task id), after the given position.
+     * Same contract as the Files-based Database.readPendingDownloadTasksFromDB().
+     */
+    List<Task> readPending(String itemId, final int afterOrder, final long afterTaskId, int limit) {
+        // Keep the smallest `limit` candidates in a max-heap.
+        final Comparator<Task> ascending = (a, b) -> a.order != b.order ? Integer.compare(a.order, b.order) : Long.compare(a.taskId, b.taskId);
+        final PriorityQueue<Task> heap = new PriorityQueue<>(Math.max(1, limit), Collections.reverseOrder(ascending));
+
+        for (TrackTasks track : tracks(itemId)) {
+            if (track.pending == 0) {
+                continue;
+            }
+            final Segments segments = segments(track);
+            for (int i = 0; i < track.count; i++) {
+                if (track.isComplete(i)) {
+                    continue;
+                }
+                final int order = segments.orders[i];
+                final long taskId = taskId(track.key, i);
+                if (order < afterOrder || (order == afterOrder && taskId <= afterTaskId)) {
+                    continue;
+                }
+                if (heap.size() == limit) {
+                    final Task top = heap.peek();
+                    if (order > top.order || (order == top.order && taskId > top.taskId)) {
+                        continue;
+                    }
+                    heap.poll();
+                }
+                heap.add(new Task(taskId, segments.urls[i], segments.targets[i], order,
+                        track.trackId.equals(NO_TRACK) ? null : track.trackId));
+            }
+        }
+
+        final List<Task> result = new ArrayList<>(heap);
+        Collections.sort(result, ascending);
+        return result;
+    }
+
+    /**
+     * Mark a task as complete in memory; {@link #flush()} writes the changed bitmaps.
+     *
+     * @return false if the task was already complete, or not found.
+     */
+    boolean markComplete(String itemId, long taskId) {
+        final TrackTasks track = findTrack(itemId, taskId >>> 32);
+        final int index = (int) taskId;
+        return track != null && index >= 0 && index < track.count && track.setComplete(index);
+    }
+
+    boolean markComplete(String itemId, String relativePath) {
+        for (TrackTasks track : tracks(itemId)) {
+            final Segments segments = segments(track);
+            for (int i = 0; i < track.count; i++) {
+                if (relativePath.equals(segments.targets[i])) {
+                    return track.setComplete(i);
+                }
+            }
+        }
+        return false;
+    }
+
+    // Write the bitmaps changed since the last flush.
+    void flush() {
+        for (Map.Entry<String, List<TrackTasks>> entry : items.entrySet()) {
+            for (TrackTasks track : entry.getValue()) {
+                if (!track.dirty) {
+                    continue;
+                }
+                final ContentValues values = new ContentValues();
+                values.put(COL_COMPLETION, track.completion);
+                values.put(COL_PENDING_COUNT, track.pending);
+                database.update(TBL_TRACK_TASKS, values, COL_TRACK_KEY + "==?", new String[]{String.valueOf(track.key)});
+                track.dirty = false;
+            }
+        }
+    }
+
+    int countPending(String itemId, @Nullable String trackRelativeId) {
+        int count = 0;
+        for (TrackTasks track : tracks(itemId)) {
+            if (trackRelativeId == null || track.trackId.equals(trackRelativeId)) {
+                count += track.pending;
+            }
+        }
+        return count;
+    }
+
+    void removeTrack(String itemId, String trackRelativeId) {
+        final TrackTasks track = findTrack(itemId, trackRelativeId);
+        if (track != null) {
+            database.delete(TBL_TRACK_TASKS, COL_TRACK_KEY + "==?", new String[]{String.valueOf(track.key)});
+            tracks(itemId).remove(track);
+            segmentCache.remove(track.key);
+        }
+    }
+
+    void removeItem(String itemId) {
+        final List<TrackTasks> tracks = items.remove(itemId);
+        if (tracks != null) {
+            for (TrackTasks track : tracks) {
+                segmentCache.remove(track.key);
+            }
+        }
+        database.delete(TBL_TRACK_TASKS, COL_ITEM_ID + "==?", new String[]{itemId});
+    }
+
+    // Forget cached state, e.g. after the table was changed directly.
+    void clearCache() {
+        items.clear();
+        segmentCache.clear();
+    }
+
+    // Expand all tracks of an item, for conversion back to Files rows.
+    List<ExpandedTrack> expand(String itemId) {
+        final List<ExpandedTrack> expanded = new ArrayList<>();
+        for (TrackTasks track : tracks(itemId)) {
+            final ExpandedTrack e = new ExpandedTrack();
+            e.trackRelativeId = track.trackId.equals(NO_TRACK) ? null : track.trackId;
+            e.segments = segments(track);
+            e.complete = new boolean[track.count];
+            for (int i = 0; i < track.count; i++) {
+                e.complete[i] = track.isComplete(i);
+            }
+            expanded.add(e);
+        }
+        return expanded;
+    }
+
+    static class ExpandedTrack {
+        String trackRelativeId;
+        Segments segments;
+        boolean[] complete;
+    }
+
+    // A pending task read from the store. targetFile is relative, as stored.
+    static class Task {
+        final long taskId;
+        final String url;
+        final String targetFile;
+        final int order;
+        final String trackRelativeId;
+
+        Task(long taskId, String url, String targetFile, int order, String trackRelativeId) {
+            this.taskId = taskId;
+            this.url = url;
+            this.targetFile = targetFile;
+            this.order = order;
+            this.trackRelativeId = trackRelativeId;
+        }
+    }
+
+    private static class TrackTasks {
+        final String trackId;
+        final int count;
+        final byte[] completion;
+        long key;
+        int pending;
+        boolean dirty;
+
+        TrackTasks(long key, String trackId, int count) {
+            this.key = key;
+            this.trackId = trackId;
+            this.count = count;
+            this.completion = new byte[(count + 7) / 8];
+        }
+
+        boolean isComplete(int index) {
+            return (completion[index >> 3] & (1 << (index & 7))) != 0;
+        }
+
+        boolean setComplete(int index) {
+            if (isComplete(index)) {
+                return false;
+            }
+            completion[index >> 3] |= 1 << (index & 7);
+            pending--;
+            dirty = true;
+            return true;
+        }
+    }
+
+    static class Segments {
+        String[] urls;
+        String[] targets;
+        int[] orders;
+        private int size;
+
+        Segments(int capacity) {
+            urls = new String[capacity];
+            targets = new String[capacity];
+            orders = new int[capacity];
+        }
+
+        int size() {
+            return size;
+        }
+
+        void add(String url, String target, int order) {
+            urls[size] = url;
+            targets[size] = target;
+            orders[size] = order;
+            size++;
+        }
+
+        void append(Segments other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.urls[i], other.targets[i], other.orders[i]);
+            }
+        }
+
+        void trim() {
+            if (size < urls.length) {
+                urls = Arrays.copyOf(urls, size);
+                targets = Arrays.copyOf(targets, size);
+                orders = Arrays.copyOf(orders, size);
+            }
+        }
+
+        // Consecutive segment URLs and paths mostly share a prefix; store only the differing suffix.
+        byte[] encode() {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(bytes))) {
+                out.writeInt(size);
+                String prevUrl = "";
+                String prevTarget = "";
+                for (int i = 0; i < size; i++) {
+                    writeFrontCoded(out, prevUrl, urls[i]);
+                    writeFrontCoded(out, prevTarget, targets[i]);
+                    out.writeInt(orders[i]);
+                    prevUrl = urls[i];
+                    prevTarget = targets[i];
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);     // in-memory streams don't throw
+            }
+            return bytes.toByteArray();
+        }
+
+        static Segments decode(@NonNull byte[] blob) {
+            try (DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(blob)))) {
+                final int count = in.readInt();
+                final Segments segments = new Segments(count);
+                String url = "";
+                String target = "";
+                for (int i = 0; i < count; i++) {
+                    url = readFrontCoded(in, url);
+                    target = readFrontCoded(in, target);
+                    segments.add(url, target, in.readInt());
+                }
+                return segments;
+            } catch (IOException e) {
+                throw new IllegalStateException("Corrupt segment list", e);
+            }
+        }
+
+        private static void writeFrontCoded(DataOutputStream out, String prev, String str) throws IOException {
+            final int max = Math.min(prev.length(), str.length());
+            int prefix = 0;
+            while (prefix < max && prev.charAt(prefix) == str.charAt(prefix)) {
+                prefix++;
+            }
+            out.writeInt(prefix);
+            out.writeUTF(str.substring(prefix));
+        }
+
+        private static String readFrontCoded(DataInputStream in, String prev) throws IOException {
+            final int prefix = in.readInt();
+            return prev.substring(0, prefix) + in.readUTF();
+        }
+    }
+}
@@ -12,6 +12,9 @@ import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.kaltura.dtg.exoparser.upstream.Allocation;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
@@ -25,9 +28,13 @@ import java.net.ProtocolException;
 import java.net.URL;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -45,6 +52,7 @@ public class Utils {
     private static final String USER_AGENT_KEY = "User-Agent";
     private static String USER_AGENT;
     private static Map<String, String> defaultHeaders;
+    private static HttpTransport httpTransport = new DefaultHttpTransport();
 
     static String createTable(String name, String... colDefs) {
         StringBuilder sb = new StringBuilder();
@@ -72,6 +80,17 @@ public class Utils {
         return str;
     }
 
+    static String createIndex(String tableName, String... colNames) {
+
+        String str = "CREATE INDEX " +
+                "idx_" + tableName + "_" + TextUtils.join("_", colNames) +
+                " ON " + tableName +
+                " (" + TextUtils.join(",", colNames) + ");";
+
+        Log.i("DBUtils", "Create index:\n" + str);
+        return str;
+    }
+
     static void deleteRecursive(File fileOrDirectory) {
         if (fileOrDirectory.isDirectory()) {
             final File[] files = fileOrDirectory.listFiles();
@@ -140,17 +159,12 @@ public class Utils {
     public static byte[] downloadToFile(Uri uri, Map<String,String> headers, File targetFile, int maxReturnSize, boolean crossProtocolRedirectEnabled) throws IOException {
         InputStream inputStream = null;
         FileOutputStream fileOutputStream = null;
-        HttpURLConnection conn = null;
+        HttpTransport.Connection conn = null;
+        Allocation allocation = null;
+        boolean reusable = false;
 
         try {
-            conn = openConnection(uri);
-            conn.setRequestMethod("GET");
-            if (headers != null && !headers.isEmpty()) {
-                for (Map.Entry<String, String> entry : headers.entrySet()) {
-                    conn.setRequestProperty(entry.getKey(), entry.getValue());
-                }
-            }
-            conn.connect();
+            conn = getHttpTransport().open(uri, "GET", headers, 0);
 
             if (crossProtocolRedirectEnabled) {
                 // We need to handle redirects ourselves to allow cross-protocol redirects.
@@ -163,7 +177,7 @@ public class Utils {
                             || responseCode == HttpURLConnection.HTTP_SEE_OTHER
                             || responseCode == HTTP_STATUS_TEMPORARY_REDIRECT
                             || responseCode == HTTP_STATUS_PERMANENT_REDIRECT) {
-                        conn.disconnect();
+                        conn.release(false);
                         conn = handleRequestRedirects(conn);
                     } else {
                         break;
@@ -174,9 +188,14 @@ public class Utils {
             inputStream = conn.getInputStream();
 
             fileOutputStream = new FileOutputStream(targetFile);
-            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(10 * 1024); // 10kb: save some realloc'
 
-            byte[] data = new byte[1024];
+            // Size the output by Content-Length when known, to avoid growing it while reading.
+            final long contentLength = conn.getContentLength();
+            final int initialSize = contentLength > 0 ? (int) Math.min(contentLength, maxReturnSize) : 10 * 1024;
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(initialSize);
+
+            allocation = BufferPool.shared().allocate();
+            byte[] data = allocation.data;
             int count;
 
             while ((count = inputStream.read(data)) != -1) {
@@ -188,18 +207,20 @@ public class Utils {
                     }
                 }
             }
+            reusable = true;
             
             return byteArrayOutputStream.toByteArray();
         } finally {
             // close everything
             safeClose(fileOutputStream, inputStream);
             if (conn != null) {
-                conn.disconnect();
+                conn.release(reusable);
             }
+            BufferPool.shared().release(allocation);
         }
     }
 
-    private static HttpURLConnection handleRequestRedirects(HttpURLConnection conn) throws IOException {
+    private static HttpTransport.Connection handleRequestRedirects(HttpTransport.Connection conn) throws IOException {
         String newUrl = conn.getHeaderField("Location"); // Get newUrl from location header
         if (newUrl == null) {
             throw new ProtocolException("Null location redirect");
@@ -212,11 +233,7 @@ public class Utils {
             throw new ProtocolException("Unsupported protocol redirect: " + protocol);
         }
 
-        conn = openConnection(Uri.parse(newUrl));
-        conn.setRequestMethod("GET");
-
-        conn.connect();
-        return conn;
+        return getHttpTransport().open(Uri.parse(newUrl), "GET", null, 0);
     }
 
     public static byte[] downloadToFile(String url, Map<String,String> headers, File targetFile, int maxReturnSize, boolean crossProtocolRedirectEnabled) throws IOException {
@@ -224,35 +241,114 @@ public class Utils {
     }
 
     static long httpHeadGetLength(Uri uri, Map<String, String> headers) throws IOException {
-        HttpURLConnection connection = null;
+        return httpHead(uri, headers).length;
+    }
+
+    static class HeadResponse {
+        final long length;
+        final boolean acceptsRanges;
+
+        HeadResponse(long length, boolean acceptsRanges) {
+            this.length = length;
+            this.acceptsRanges = acceptsRanges;
+        }
+    }
+
+    static HeadResponse httpHead(Uri uri, Map<String, String> headers) throws IOException {
+        HttpTransport.Connection connection = null;
+        boolean reusable = false;
+
+        Map<String, String> requestHeaders = new HashMap<>();
+        requestHeaders.put("Accept-Encoding", "");
+        if (headers != null) {
+            requestHeaders.putAll(headers);
+        }
 
         try {
-            connection = openConnection(uri);
-            connection.setRequestMethod("HEAD");
-            connection.setRequestProperty("Accept-Encoding", "");
-            if (headers != null && !headers.isEmpty()) {
-                for (Map.Entry<String, String> entry : headers.entrySet()) {
-                    connection.setRequestProperty(entry.getKey(), entry.getValue());
-                }
-            }
-            connection.connect();
+            connection = getHttpTransport().open(uri, "HEAD", requestHeaders, 0);
             int responseCode = connection.getResponseCode();
             if (responseCode >= 400) {
                 throw new IOException("Response code from HEAD request: " + responseCode);
             }
-            String contentLength = connection.getHeaderField("Content-Length");
-            if (!TextUtils.isEmpty(contentLength)) {
-                return Long.parseLong(contentLength);
-            } else {
-                return -1;
-            }
+            reusable = true;    // no body to read
+            return new HeadResponse(connection.getContentLength(), "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges")));
         } finally {
             if (connection != null) {
-                connection.disconnect();
+                connection.release(reusable);
+            }
+        }
+    }
+
+    /**
+     * @param retryAfter value of a Retry-After header: seconds, or an HTTP date.
+     * @return the delay in milliseconds, or -1 if missing or invalid.
+     */
+    static long parseRetryAfterMs(@Nullable String retryAfter) {
+        if (retryAfter == null || retryAfter.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            // Not seconds
+        }
+        try {
+            final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            final Date date = format.parse(retryAfter.trim());
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * @param contentRange value of a Content-Range header: "bytes first-last/total" or "bytes *&#47;total".
+     * @return {first, last, total}, -1 for "*" parts, or null if missing or invalid.
+     */
+    static @Nullable long[] parseContentRange(@Nullable String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        final String value = contentRange.trim();
+        if (!value.regionMatches(true, 0, "bytes ", 0, 6)) {
+            return null;
+        }
+        final int slash = value.indexOf('/');
+        if (slash < 0) {
+            return null;
+        }
+        try {
+            final String range = value.substring(6, slash).trim();
+            final String total = value.substring(slash + 1).trim();
+            final long[] result = {-1, -1, total.equals("*") ? -1 : Long.parseLong(total)};
+            if (!range.equals("*")) {
+                final int dash = range.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                result[0] = Long.parseLong(range.substring(0, dash));
+                result[1] = Long.parseLong(range.substring(dash + 1));
             }
+            return result;
+        } catch (NumberFormatException e) {
+            return null;
         }
     }
 
+    static void setHttpTransport(@Nullable HttpTransport transport) {
+        httpTransport = transport != null ? transport : new DefaultHttpTransport();
+    }
+
+    @NonNull
+    static HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    @Nullable
+    static Map<String, String> getDefaultHeaders() {
+        return defaultHeaders;
+    }
+
     static HttpURLConnection openConnection(Uri uri) throws IOException {
         if (uri == null) {
             return null;
@@ -269,10 +365,22 @@ public class Utils {
         return httpURLConnection;
     }
 
+    // A connection whose response body was fully read (and closed) is left alive, so the platform
+    // can reuse it for the next request to the same host. Anything else is disconnected.
+    static void releaseConnection(HttpURLConnection connection, boolean reusable) {
+        if (connection == null) {
+            return;
+        }
+        if (!reusable) {
+            connection.disconnect();
+        }
+    }
+
     @NonNull
     private static ByteArrayOutputStream fullyReadInputStream(InputStream inputStream, int byteLimit) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        byte[] data = new byte[1024];
+        Allocation allocation = BufferPool.shared().allocate();
+        byte[] data = allocation.data;
         int count;
 
         try {
@@ -289,6 +397,7 @@ public class Utils {
         } finally {
             safeClose(bos);
             safeClose(inputStream);
+            BufferPool.shared().release(allocation);
         }
         return bos;
     }
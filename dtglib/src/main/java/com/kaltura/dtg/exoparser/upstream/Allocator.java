@@ -18,7 +18,7 @@ package com.kaltura.dtg.exoparser.upstream;
 /**
  * A source of allocations.
  */
-interface Allocator {
+public interface Allocator {
 
   /**
    * Obtain an {@link Allocation}.
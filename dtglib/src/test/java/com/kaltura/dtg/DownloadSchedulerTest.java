@@ -0,0 +1,93 @@
+package com.kaltura.dtg;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class DownloadSchedulerTest {
+
+    // Keeps the submitted tasks instead of running them, so they stay in flight until run.
+    private static class RecordingExecutor extends ThreadPoolExecutor {
+        final List<Runnable> submitted = new ArrayList<>();
+
+        RecordingExecutor(int threads) {
+            super(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            submitted.add(command);
+        }
+    }
+
+    private static FutureTask<Void> newTask() {
+        return new FutureTask<>(() -> null);
+    }
+
+    private static void enqueue(DownloadScheduler scheduler, String itemId, String host, int count) {
+        for (int i = 0; i < count; i++) {
+            scheduler.enqueue(itemId, host, newTask());
+        }
+    }
+
+    private static int inFlight(DownloadScheduler scheduler, String host) {
+        final Map<String, ContentManager.Metrics.HostLoad> load = scheduler.getHostLoad();
+        return load.containsKey(host) ? load.get(host).inFlight : 0;
+    }
+
+    @Test
+    public void hostsOfAnItemShareWorkersWithoutLimit() {
+        final RecordingExecutor executor = new RecordingExecutor(4);
+        final DownloadScheduler scheduler = new DownloadScheduler(executor, 0);
+
+        scheduler.hold();
+        enqueue(scheduler, "item1", "cdn.example.com", 8);
+        enqueue(scheduler, "item1", "keys.example.com", 8);
+        scheduler.release();
+
+        assertEquals(4, executor.submitted.size());
+        assertEquals(2, inFlight(scheduler, "cdn.example.com"));
+        assertEquals(2, inFlight(scheduler, "keys.example.com"));
+    }
+
+    @Test
+    public void freedWorkerGoesToTheLeastRecentlyServedHost() {
+        final RecordingExecutor executor = new RecordingExecutor(3);
+        final DownloadScheduler scheduler = new DownloadScheduler(executor, 0);
+
+        scheduler.hold();
+        enqueue(scheduler, "item1", "cdn.example.com", 8);
+        enqueue(scheduler, "item1", "keys.example.com", 8);
+        scheduler.release();
+        assertEquals(2, inFlight(scheduler, "cdn.example.com"));
+        assertEquals(1, inFlight(scheduler, "keys.example.com"));
+
+        executor.submitted.get(0).run();    // a cdn task finishes
+
+        assertEquals(1, inFlight(scheduler, "cdn.example.com"));
+        assertEquals(2, inFlight(scheduler, "keys.example.com"));
+    }
+
+    @Test
+    public void fullHostYieldsWorkersToOthers() {
+        final RecordingExecutor executor = new RecordingExecutor(4);
+        final DownloadScheduler scheduler = new DownloadScheduler(executor, 1);
+
+        scheduler.hold();
+        enqueue(scheduler, "item1", "cdn.example.com", 8);
+        enqueue(scheduler, "item1", "keys.example.com", 8);
+        scheduler.release();
+
+        assertEquals(2, executor.submitted.size());
+        assertEquals(1, inFlight(scheduler, "cdn.example.com"));
+        assertEquals(1, inFlight(scheduler, "keys.example.com"));
+    }
+}
@@ -0,0 +1,36 @@
+package com.kaltura.dtg;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class LoopbackHttpTransportTest {
+
+    @Test
+    public void parseBoundedRange() {
+        assertArrayEquals(new int[]{0, 99}, LoopbackHttpTransport.parseRange("bytes=0-99", 1000));
+        assertArrayEquals(new int[]{500, 999}, LoopbackHttpTransport.parseRange("bytes=500-5000", 1000));
+    }
+
+    @Test
+    public void parseOpenEndedAndSuffixRanges() {
+        assertArrayEquals(new int[]{400, 999}, LoopbackHttpTransport.parseRange("Bytes=400-", 1000));
+        assertArrayEquals(new int[]{900, 999}, LoopbackHttpTransport.parseRange("bytes=-100", 1000));
+        assertArrayEquals(new int[]{0, 999}, LoopbackHttpTransport.parseRange("bytes=-5000", 1000));
+    }
+
+    @Test
+    public void parseUnsatisfiableRange() {
+        assertArrayEquals(new int[]{1000, 1000}, LoopbackHttpTransport.parseRange("bytes=1000-", 1000));
+        assertArrayEquals(new int[]{1000, 1000}, LoopbackHttpTransport.parseRange("bytes=-0", 1000));
+    }
+
+    @Test
+    public void ignoreInvalidOrMultipleRanges() {
+        assertNull(LoopbackHttpTransport.parseRange("items=0-99", 1000));
+        assertNull(LoopbackHttpTransport.parseRange("bytes=99-0", 1000));
+        assertNull(LoopbackHttpTransport.parseRange("bytes=0-9,20-29", 1000));
+        assertNull(LoopbackHttpTransport.parseRange("bytes=x-", 1000));
+    }
+}
@@ -0,0 +1,144 @@
+package com.kaltura.dtg;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RangedDownloadTest {
+
+    private static final long MB = 1024 * 1024;
+
+    private DownloadTask file;
+    private DownloadTask worker1;
+    private DownloadTask worker2;
+
+    @Before
+    public void setUp() {
+        file = newTask();
+        worker1 = newTask();
+        worker2 = newTask();
+    }
+
+    private static DownloadTask newTask() {
+        return new DownloadTask(null, new File("/data/items/item1/data/video.mp4"), 1);
+    }
+
+    @Test
+    public void splitCoversTheWholeFile() {
+        final RangedDownload ranged = RangedDownload.split(file, 10 * MB + 3, 4);
+
+        final List<long[]> remaining = ranged.remaining();
+        assertEquals(4, remaining.size());
+        assertEquals(0, remaining.get(0)[0]);
+        for (int i = 1; i < remaining.size(); i++) {
+            assertEquals(remaining.get(i - 1)[1], remaining.get(i)[0]);
+        }
+        assertEquals(10 * MB + 3, remaining.get(3)[1]);
+    }
+
+    @Test
+    public void claimGivesEachWorkerItsOwnRange() {
+        final RangedDownload ranged = RangedDownload.split(file, 8 * MB, 2);
+
+        final RangedDownload.Range range1 = ranged.claim(worker1);
+        final RangedDownload.Range range2 = ranged.claim(worker2);
+
+        assertNotNull(range1);
+        assertNotNull(range2);
+        assertEquals(0, range1.position);
+        assertEquals(4 * MB, range2.position);
+        assertSame(range1, ranged.claim(worker1));
+    }
+
+    @Test
+    public void claimStealsSecondHalfOfLargestRange() {
+        final RangedDownload ranged = RangedDownload.split(file, 8 * MB, 1);
+        final RangedDownload.Range range1 = ranged.claim(worker1);
+        assertEquals(2 * MB, ranged.reserve(range1, (int) (2 * MB)));
+        ranged.commit(range1);
+
+        final RangedDownload.Range stolen = ranged.claim(worker2);
+
+        assertNotNull(stolen);
+        assertSame(worker2, stolen.owner);
+        assertEquals(5 * MB, stolen.position);
+        assertEquals(8 * MB, stolen.end);
+        assertEquals(5 * MB, range1.end);
+    }
+
+    @Test
+    public void claimDoesNotStealSmallRanges() {
+        final RangedDownload ranged = RangedDownload.split(file, 2 * MB - 1, 1);
+        assertNotNull(ranged.claim(worker1));
+
+        assertNull(ranged.claim(worker2));
+    }
+
+    @Test
+    public void reserveStopsAtRangeEnd() {
+        final RangedDownload ranged = RangedDownload.split(file, 1000, 1);
+        final RangedDownload.Range range = ranged.claim(worker1);
+
+        assertEquals(600, ranged.reserve(range, 600));
+        ranged.commit(range);
+        assertFalse(ranged.isDone(range));
+
+        assertEquals(400, ranged.reserve(range, 600));
+        ranged.commit(range);
+        assertTrue(ranged.isDone(range));
+        assertEquals(0, ranged.reserve(range, 600));
+    }
+
+    @Test
+    public void releaseLetsAnotherWorkerTakeOver() {
+        final RangedDownload ranged = RangedDownload.split(file, 1000, 1);
+        final RangedDownload.Range range = ranged.claim(worker1);
+        ranged.reserve(range, 100);
+        ranged.commit(range);
+        ranged.reserve(range, 100);     // not committed
+
+        ranged.release(worker1);
+
+        assertSame(range, ranged.claim(worker2));
+        assertEquals(100, range.reserved);
+        assertArrayEquals(new long[]{100, 1000}, ranged.remaining().get(0));
+    }
+
+    @Test
+    public void completeReturnsTrueOnce() {
+        final RangedDownload ranged = RangedDownload.split(file, 1000, 2);
+        final RangedDownload.Range range1 = ranged.claim(worker1);
+        final RangedDownload.Range range2 = ranged.claim(worker2);
+
+        ranged.reserve(range1, 1000);
+        ranged.commit(range1);
+        assertFalse(ranged.complete());
+
+        ranged.reserve(range2, 1000);
+        ranged.commit(range2);
+        assertTrue(ranged.complete());
+        assertFalse(ranged.complete());
+        assertTrue(ranged.remaining().isEmpty());
+    }
+
+    @Test
+    public void firstValidatorIsKeptAndChecked() {
+        final RangedDownload ranged = RangedDownload.split(file, 1000, 2);
+
+        assertTrue(ranged.acceptValidator("\"v1\""));
+        assertEquals("\"v1\"", ranged.getValidator());
+        assertTrue(ranged.acceptValidator("\"v1\""));
+        assertFalse(ranged.acceptValidator("\"v2\""));
+        assertFalse(ranged.acceptValidator(null));
+    }
+}
@@ -0,0 +1,62 @@
+package com.kaltura.dtg;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UtilsTest {
+
+    @Test
+    public void parseContentRange() {
+        assertArrayEquals(new long[]{0, 99, 1000}, Utils.parseContentRange("bytes 0-99/1000"));
+        assertArrayEquals(new long[]{500, 999, 1000}, Utils.parseContentRange(" Bytes 500-999/1000 "));
+        assertArrayEquals(new long[]{0, 99, -1}, Utils.parseContentRange("bytes 0-99/*"));
+    }
+
+    @Test
+    public void parseContentRangeOfUnsatisfiedRange() {
+        assertArrayEquals(new long[]{-1, -1, 1000}, Utils.parseContentRange("bytes */1000"));
+    }
+
+    @Test
+    public void parseInvalidContentRange() {
+        assertNull(Utils.parseContentRange(null));
+        assertNull(Utils.parseContentRange(""));
+        assertNull(Utils.parseContentRange("items 0-99/1000"));
+        assertNull(Utils.parseContentRange("bytes 0-99"));
+        assertNull(Utils.parseContentRange("bytes 99/1000"));
+        assertNull(Utils.parseContentRange("bytes 0-x/1000"));
+    }
+
+    @Test
+    public void parseRetryAfterSeconds() {
+        assertEquals(120000, Utils.parseRetryAfterMs("120"));
+        assertEquals(0, Utils.parseRetryAfterMs("-5"));
+    }
+
+    @Test
+    public void parseRetryAfterHttpDate() {
+        final SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        final long delay = Utils.parseRetryAfterMs(format.format(new Date(System.currentTimeMillis() + 60000)));
+        assertTrue("delay " + delay, delay > 55000 && delay <= 60000);
+
+        assertEquals(0, Utils.parseRetryAfterMs(format.format(new Date(System.currentTimeMillis() - 60000))));
+    }
+
+    @Test
+    public void parseInvalidRetryAfter() {
+        assertEquals(-1, Utils.parseRetryAfterMs(null));
+        assertEquals(-1, Utils.parseRetryAfterMs(""));
+        assertEquals(-1, Utils.parseRetryAfterMs("soon"));
+    }
+}